@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * The ArrayHeap class holds the int arrays a program allocates, all in one growable int array so that millions of
+ * elements take no more room than the ints themselves. An array is a handle, the index of its first element; the word
+ * before it holds the length. Handles start at 1, so 0 (the value of a variable never assigned) is never an array.
+ * Arrays live until the machine is reset: there is no garbage collection.
+ */
+public class ArrayHeap {
+    private int[] words;
+    private int top = 0;    // the words in use
+    private final int limit;
+
+    public final static int DEFAULT_LIMIT = 1 << 26;    // words, i.e. 256MB
+    private final static int INITIAL_SIZE = 1024;
+
+    public ArrayHeap() {
+        this(DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param limit the number of words the heap may grow to before an allocation fails with a MachineException
+     */
+    public ArrayHeap(int limit) {
+        this.limit = Math.max(limit, 1);
+        words = new int[Math.min(INITIAL_SIZE, this.limit)];
+    }
+
+    /**
+     * @return the number of words the heap may grow to
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Allocates an array of zeros.
+     * @param length the number of elements
+     * @param pc the address of the instruction that allocates it, for the error message
+     * @return the handle of the array
+     */
+    public int allocate(int length, int pc) {
+        if (length < 0) throw new MachineException("Negative array size " + length + " at pc " + pc);
+        long needed = (long) top + 1 + length;
+        if (needed > words.length) {
+            if (needed > limit) throw new MachineException("Out of heap at pc " + pc + ": " + needed
+                    + " words needed, the limit is " + limit);
+            words = Arrays.copyOf(words, (int) Math.min(limit, Math.max(needed, 2L * words.length)));
+        }
+        words[top] = length;
+        int handle = top + 1;
+        Arrays.fill(words, handle, handle + length, 0);     // the words may hold arrays from before a reset
+        top = handle + length;
+        return handle;
+    }
+
+    /**
+     * @param array a handle
+     * @param index the index of an element
+     * @param pc the address of the instruction that reads it, for the error message
+     * @return the element
+     */
+    public int load(int array, int index, int pc) {
+        return words[check(array, index, pc)];
+    }
+
+    /**
+     * @param array a handle
+     * @param index the index of an element
+     * @param value its new value
+     * @param pc the address of the instruction that writes it, for the error message
+     */
+    public void store(int array, int index, int value, int pc) {
+        words[check(array, index, pc)] = value;
+    }
+
+    /**
+     * @param array a handle
+     * @param pc the address of the instruction that asks, for the error message
+     * @return the number of elements
+     */
+    public int length(int array, int pc) {
+        if (array < 1 || array > top) throw error(array, 0, pc);
+        return words[array - 1];
+    }
+
+    /**
+     * @return the position of an element in words
+     */
+    private int check(int array, int index, int pc) {
+        // a forged handle can point into the middle of an array, so the element must be in use as well. If the handle
+        // is past the top, so is any element.
+        if (array < 1 || index < 0 || index >= top - array || index >= words[array - 1]) throw error(array, index, pc);
+        return array + index;
+    }
+
+    /**
+     * Builds the error for a bad handle or index. It is kept out of the checks so they stay small enough to be inlined
+     * into the interpreter loops.
+     */
+    private MachineException error(int array, int index, int pc) {
+        if (array < 1 || array > top) return new MachineException("Not an array: " + array + " at pc " + pc);
+        return new MachineException("Index " + index + " out of bounds for length " + words[array - 1]
+                + " at pc " + pc);
+    }
+
+    /**
+     * Frees every array.
+     */
+    public void clear() {
+        top = 0;
+    }
+
+    /**
+     * @return the words in use, e.g. for a snapshot
+     */
+    public int[] contents() {
+        return Arrays.copyOf(words, top);
+    }
+
+    /**
+     * Replaces every array by the arrays of contents. Handles stay valid, since they are positions in contents.
+     * @param contents words from contents()
+     */
+    public void restore(int[] contents) {
+        if (contents.length > limit) throw new MachineException("Out of heap: " + contents.length
+                + " words needed, the limit is " + limit);
+        if (contents.length > words.length) words = new int[contents.length];
+        System.arraycopy(contents, 0, words, 0, contents.length);
+        top = contents.length;
+    }
+}
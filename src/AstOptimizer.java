@@ -0,0 +1,354 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * The AstOptimizer class simplifies a syntax tree before it is compiled. Operators whose operands are constants are
+ * computed with the machine's arithmetic, identities such as x*1, x+0 and x*0 are simplified when dropping an operand
+ * can't skip a function call or a division by zero, and if/while/for blocks whose conditions are constantly false are
+ * removed (an if whose condition is constantly true keeps only its block).
+ * <p>
+ * Variables and functions are numbered when the compiler first sees them, so a removed block that assigns variables is
+ * replaced by "declare" nodes that give the variables their slots without any code, and blocks that declare functions
+ * are never removed.
+ */
+public class AstOptimizer {
+
+    private AstOptimizer() {
+    }
+
+    /**
+     * Optimizes a program's syntax tree.
+     * @param ast the head of the tree from Parser.parseTree
+     * @return the head of the optimized tree (the tree is changed in place)
+     */
+    static Parser.ExpressionNode optimize(Parser.ExpressionNode ast) {
+        return block(ast);
+    }
+
+    /**
+     * Optimizes a chain of statements. The grammar nests each statement's successor inside it, so the chain is
+     * followed in a loop, remembering which node holds the link to the current statement.
+     * @param head a code_block or lines node
+     * @return the new head of the chain
+     */
+    private static Parser.ExpressionNode block(Parser.ExpressionNode head) {
+        Parser.ExpressionNode first = head, owner = null, current = head;
+        int slot = -1;  // the index of current in owner's children
+        while (current != null) {
+            Parser.ExpressionNode replacement = statement(current);
+            if (replacement != current) {
+                if (owner == null) first = replacement;
+                else if (replacement == null) owner.children.remove(slot);
+                else owner.children.set(slot, replacement);
+                current = replacement;  // the replacement is optimized in turn
+                continue;
+            }
+            if (current.ruleName().equals("lines")) {
+                owner = current;
+                slot = 1;
+            } else if (!current.children.isEmpty()) {   // a code_block holding a statement
+                owner = current.children.get(0);
+                slot = tailIndex(owner);
+            } else {
+                break;
+            }
+            current = owner.children.size() > slot ? owner.children.get(slot) : null;
+        }
+        return first != null ? first : node("code_block");
+    }
+
+    /**
+     * @return the index of the child of a statement that holds the next statement
+     */
+    private static int tailIndex(Parser.ExpressionNode statement) {
+        return switch (statement.ruleName()) {
+            case "for" -> 4;
+            case "lines" -> 1;
+            default -> 2;   // if, while, function
+        };
+    }
+
+    /**
+     * Optimizes one link of a statement chain without following the chain.
+     * @param link a code_block or lines node
+     * @return link, or the node that replaces it (which may be the next link or null)
+     */
+    private static Parser.ExpressionNode statement(Parser.ExpressionNode link) {
+        if (link.ruleName().equals("lines")) {
+            Parser.ExpressionNode line = link.children.get(0);
+            switch (line.ruleName()) {
+                case "assign" -> line.children.set(1, fold(line.children.get(1)));
+                case "print", "ret" -> {
+                    if (!line.children.isEmpty()) line.children.set(0, fold(line.children.get(0)));
+                }
+                case "declare" -> {
+                }
+                default -> link.children.set(0, fold(line));
+            }
+            return link;
+        }
+        if (link.children == null || link.children.isEmpty()) return link;
+        Parser.ExpressionNode s = link.children.get(0);
+        Parser.ExpressionNode next = s.children.size() > tailIndex(s) ? s.children.get(tailIndex(s)) : null;
+        switch (s.ruleName()) {
+            case "if" -> {
+                s.children.set(0, fold(s.children.get(0)));
+                s.children.set(1, block(s.children.get(1)));
+                Integer condition = constant(s.children.get(0));
+                if (condition == null || containsFunction(s.children.get(1))) return link;
+                // JMPF only branches on 0, so any other constant always runs the block
+                if (condition != 0) return append(s.children.get(1), next);
+                return declareAssigned(s.children.get(1), next);
+            }
+            case "while" -> {
+                s.children.set(0, fold(s.children.get(0)));
+                s.children.set(1, block(s.children.get(1)));
+                Integer condition = constant(s.children.get(0));
+                if (condition == null || condition != 0 || containsFunction(s.children.get(1))) return link;
+                return declareAssigned(s.children.get(1), next);
+            }
+            case "for" -> {
+                Parser.ExpressionNode init = s.children.get(0), increment = s.children.get(2);
+                // an assign's variable is a ref, which folds to itself, and an element_assign's operands all fold
+                init.children.replaceAll(AstOptimizer::fold);
+                s.children.set(1, fold(s.children.get(1)));
+                increment.children.replaceAll(AstOptimizer::fold);
+                s.children.set(3, block(s.children.get(3)));
+                Integer condition = constant(s.children.get(1));
+                if (condition == null || condition != 0 || containsFunction(s.children.get(3))) return link;
+                // the initialization still runs once
+                Parser.ExpressionNode body = node("lines", s.children.get(3), increment);
+                return node("lines", init, declareAssigned(body, next));
+            }
+            case "function" -> {
+                s.children.set(1, block(s.children.get(1)));
+                return link;
+            }
+            default -> {
+                return link;
+            }
+        }
+    }
+
+    /**
+     * Puts a statement chain in front of another.
+     * @param chain the statements to run first
+     * @param next the statements to run after them (may be null)
+     * @return the joined chain or null if both are empty
+     */
+    private static Parser.ExpressionNode append(Parser.ExpressionNode chain, Parser.ExpressionNode next) {
+        if (chain.ruleName().equals("code_block") && chain.children.isEmpty()) return next;
+        if (next == null) return chain;
+        Parser.ExpressionNode owner = chain;
+        while (true) {
+            if (!owner.ruleName().equals("lines")) owner = owner.children.get(0);   // a code_block's statement
+            int slot = tailIndex(owner);
+            if (owner.children.size() <= slot) {
+                owner.children.add(next);
+                return chain;
+            }
+            owner = owner.children.get(slot);
+            if (owner.ruleName().equals("code_block") && owner.children.isEmpty()) {
+                // an empty code_block at the end of the chain
+                Parser.ExpressionNode parent = chain;
+                while (true) {
+                    if (!parent.ruleName().equals("lines")) parent = parent.children.get(0);
+                    if (parent.children.get(tailIndex(parent)) == owner) {
+                        parent.children.set(tailIndex(parent), next);
+                        return chain;
+                    }
+                    parent = parent.children.get(tailIndex(parent));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces removed code by declarations of the variables it assigns, so they keep their slots.
+     * @param removed the removed code
+     * @param next the statements after it (may be null)
+     * @return a chain of declare lines followed by next, or next if nothing was assigned
+     */
+    private static Parser.ExpressionNode declareAssigned(Parser.ExpressionNode removed, Parser.ExpressionNode next) {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        collectAssigned(removed, names);
+        ArrayList<String> ordered = new ArrayList<>(names);
+        Parser.ExpressionNode chain = next;
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            Parser.ExpressionNode declare = node("declare", new Parser.ExpressionNode("ref", ordered.get(i), null));
+            chain = chain == null ? node("lines", declare) : node("lines", declare, chain);
+        }
+        return chain;
+    }
+
+    private static void collectAssigned(Parser.ExpressionNode e, LinkedHashSet<String> names) {
+        ArrayList<Parser.ExpressionNode> toVisit = new ArrayList<>(); // in the order the compiler visits them
+        toVisit.add(e);
+        while (!toVisit.isEmpty()) {
+            Parser.ExpressionNode n = toVisit.remove(toVisit.size() - 1);
+            if (n.ruleName().equals("assign") || n.ruleName().equals("declare")) names.add(n.children.get(0).value);
+            if (n.children == null) continue;
+            ArrayList<Parser.ExpressionNode> children = new ArrayList<>(n.children);
+            if (n.ruleName().equals("for")) children.add(3, children.remove(2));    // the body is compiled first
+            for (int i = children.size() - 1; i >= 0; i--) toVisit.add(children.get(i));
+        }
+    }
+
+    private static boolean containsFunction(Parser.ExpressionNode e) {
+        ArrayList<Parser.ExpressionNode> toVisit = new ArrayList<>();
+        toVisit.add(e);
+        while (!toVisit.isEmpty()) {
+            Parser.ExpressionNode n = toVisit.remove(toVisit.size() - 1);
+            if (n.ruleName().equals("function")) return true;
+            if (n.children != null) toVisit.addAll(n.children);
+        }
+        return false;
+    }
+
+    /**
+     * Folds the constant parts of an expression.
+     * @param e an expression
+     * @return the folded expression (e, one of its children, or a new const node)
+     */
+    static Parser.ExpressionNode fold(Parser.ExpressionNode e) {
+        switch (e.ruleName()) {
+            case "const", "ref" -> {
+                return e;
+            }
+            case "item" -> {
+                return fold(e.children.get(0));     // parentheses only group
+            }
+            case "unary" -> {
+                Parser.ExpressionNode a = fold(e.children.get(0));
+                e.children.set(0, a);
+                Integer value = constant(a);
+                if (value == null) return e;
+                return constNode(e.op.equals("SUB") ? -value : not(value));
+            }
+            case "sum", "product", "comparison", "equality", "and", "or" -> {
+                Parser.ExpressionNode a = fold(e.children.get(0)), b = fold(e.children.get(1));
+                e.children.set(0, a);
+                e.children.set(1, b);
+                Integer x = constant(a), y = constant(b);
+                if (x != null && y != null) {
+                    if ((e.op.equals("DIV") || e.op.equals("MOD")) && y == 0) return e;    // fails at runtime
+                    return constNode(apply(e.op, x, y));
+                }
+                return simplify(e, a, b, x, y);
+            }
+            default -> {
+                // func_call, args, element, new_array, element_assign: fold the operands
+                if (e.children != null) e.children.replaceAll(AstOptimizer::fold);
+                return e;
+            }
+        }
+    }
+
+    /**
+     * Applies the identities of an operator with one constant operand.
+     * @return the simplified expression or e
+     */
+    private static Parser.ExpressionNode simplify(Parser.ExpressionNode e, Parser.ExpressionNode a,
+                                                  Parser.ExpressionNode b, Integer x, Integer y) {
+        switch (e.op) {
+            case "ADD" -> {
+                if (y != null && y == 0) return a;
+                if (x != null && x == 0) return b;
+            }
+            case "SUB" -> {
+                if (y != null && y == 0) return a;
+                if (x != null && x == 0) return node("unary", "SUB", b);
+            }
+            case "MUL" -> {
+                if (y != null && y == 1) return a;
+                if (x != null && x == 1) return b;
+                if ((y != null && y == 0 && pure(a)) || (x != null && x == 0 && pure(b))) return constNode(0);
+            }
+            case "DIV" -> {
+                if (y != null && y == 1) return a;
+            }
+            case "MOD" -> {
+                if (y != null && (y == 1 || y == -1) && pure(a)) return constNode(0);
+            }
+            case "AND" -> {
+                // AND is 1 only if both operands are 1
+                if ((y != null && y != 1 && pure(a)) || (x != null && x != 1 && pure(b))) return constNode(0);
+            }
+            case "OR" -> {
+                if ((y != null && y == 1 && pure(a)) || (x != null && x == 1 && pure(b))) return constNode(1);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Computes a binary operator the way Machine does.
+     */
+    private static int apply(String op, int a, int b) {
+        return switch (op) {
+            case "ADD" -> a + b;
+            case "SUB" -> a - b;
+            case "MUL" -> a * b;
+            case "DIV" -> a / b;
+            case "MOD" -> a % b;
+            case "LT" -> a < b ? 1 : 0;
+            case "GT" -> a > b ? 1 : 0;
+            case "LEQ" -> a <= b ? 1 : 0;
+            case "GEQ" -> a >= b ? 1 : 0;
+            case "EQ" -> a == b ? 1 : 0;
+            case "NEQ" -> a == b ? 0 : 1;
+            case "AND" -> a == 1 && b == 1 ? 1 : 0;
+            case "OR" -> a == 1 || b == 1 ? 1 : 0;
+            default -> throw new IllegalArgumentException("Unknown operator " + op);
+        };
+    }
+
+    private static int not(int a) {
+        return a == 1 ? 0 : a == 0 ? 1 : a;
+    }
+
+    /**
+     * @return whether evaluating e can be skipped: it calls no functions, uses no arrays (which can fail or allocate)
+     * and divides only by nonzero constants
+     */
+    private static boolean pure(Parser.ExpressionNode e) {
+        switch (e.ruleName()) {
+            case "const", "ref" -> {
+                return true;
+            }
+            case "func_call", "element", "new_array" -> {
+                return false;
+            }
+            default -> {
+                if (("DIV".equals(e.op) || "MOD".equals(e.op))) {
+                    Integer divisor = constant(e.children.get(1));
+                    if (divisor == null || divisor == 0) return false;
+                }
+                for (Parser.ExpressionNode child : e.children) if (!pure(child)) return false;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the value of a const node or null if e is not one
+     */
+    private static Integer constant(Parser.ExpressionNode e) {
+        return e.ruleName().equals("const") ? Integer.valueOf(Integer.parseInt(e.value.strip())) : null;
+    }
+
+    private static Parser.ExpressionNode constNode(int value) {
+        return new Parser.ExpressionNode("const", Integer.toString(value), null);
+    }
+
+    private static Parser.ExpressionNode node(String rule, Parser.ExpressionNode... children) {
+        return new Parser.ExpressionNode(rule, "", new ArrayList<>(Arrays.asList(children)));
+    }
+
+    private static Parser.ExpressionNode node(String rule, String op, Parser.ExpressionNode... children) {
+        Parser.ExpressionNode e = node(rule, children);
+        e.op = op;
+        return e;
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Benchmarks class times each stage of the toolchain separately: Lexer.tokenize, Parser.parse, assembling and
+ * optimizing bytecode (what Compiler.compile does between reading and writing files), Machine.load and Machine.run on
+ * each engine. Every benchmark is warmed up, then timed over a number of iterations, and the results are printed as a
+ * table and can be written as JSON so two commits can be compared with the compare mode.
+ */
+public class Benchmarks {
+    public static final int DEFAULT_WARMUP = 5, DEFAULT_ITERATIONS = 10;
+    // an iteration repeats the operation until it has taken at least this long
+    private static final long MIN_ITERATION_NANOS = 20_000_000;
+    // compare reports a benchmark whose score grew by more than this fraction as a regression
+    public static final double DEFAULT_TOLERANCE = 0.10;
+
+    // the programs run by the Machine benchmarks
+    private static final Map<String, String> WORKLOADS = new LinkedHashMap<>();
+    static {
+        WORKLOADS.put("factorial", """
+                func fact(n){
+                    if(n <= 1){
+                        return 1;
+                    }
+                    return n * fact(n - 1);
+                }
+                i = 0;
+                s = 0;
+                while(i < 5000){
+                    s = s + fact(12);
+                    i = i + 1;
+                }
+                print(s);
+                """);
+        WORKLOADS.put("fib", """
+                func fib(n){
+                    if(n < 2){
+                        return n;
+                    }
+                    return fib(n - 1) + fib(n - 2);
+                }
+                print(fib(22));
+                """);
+        WORKLOADS.put("loops", """
+                s = 0;
+                for(i = 0; i < 300; i = i + 1){
+                    j = 0;
+                    while(j < 300){
+                        if((i + j) % 3 == 0){
+                            s = s + i * j;
+                        }
+                        j = j + 1;
+                    }
+                }
+                print(s);
+                """);
+        // the primes are found by trial division and counted in globals, sieve finds the same ones with an array
+        WORKLOADS.put("primes", """
+                count = 0;
+                last = 0;
+                for(n = 2; n < 20000; n = n + 1){
+                    d = 2;
+                    prime = 1;
+                    while(prime && d * d <= n){
+                        if(n % d == 0){
+                            prime = 0;
+                        }
+                        d = d + 1;
+                    }
+                    if(prime){
+                        count = count + 1;
+                        last = n;
+                    }
+                }
+                print(count);
+                print(last);
+                """);
+        WORKLOADS.put("sieve", """
+                composite = [20000];
+                count = 0;
+                last = 0;
+                for(n = 2; n < 20000; n = n + 1){
+                    if(composite[n] == 0){
+                        count = count + 1;
+                        last = n;
+                        for(m = n * n; m < 20000; m = m + n){
+                            composite[m] = 1;
+                        }
+                    }
+                }
+                print(count);
+                print(last);
+                """);
+    }
+    // the sizes of the generated sources for the front end benchmarks, in lines
+    private static final int[] SOURCE_LINES = {1000, 4000, 16000};
+
+    private static final String[] ENGINES = {"switch", "predecoded", "jit", "memo"};
+
+    private final int warmup, iterations;
+    private final Pattern filter;
+    private final ArrayList<Result> results = new ArrayList<>();
+    private static volatile long sink;  // keeps the results of timed operations from being optimized away
+
+    /**
+     * The time per operation of one benchmark over its timed iterations.
+     */
+    private static class Result {
+        final String name;
+        final double mean, error, min;  // ms per operation; error is the standard deviation
+        final int iterations;
+
+        Result(String name, double mean, double error, double min, int iterations) {
+            this.name = name;
+            this.mean = mean;
+            this.error = error;
+            this.min = min;
+            this.iterations = iterations;
+        }
+    }
+
+    /**
+     * An operation to time, returning something that depends on its work, or its own time in nanoseconds if it only
+     * times part of what it does.
+     */
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * @param warmup the number of untimed iterations before timing each benchmark
+     * @param iterations the number of timed iterations
+     * @param filter only benchmarks whose name (e.g. "run/fib/jit") contains a match are run
+     */
+    public Benchmarks(int warmup, int iterations, String filter) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.filter = Pattern.compile(filter);
+    }
+
+    /**
+     * Runs every benchmark that matches the filter.
+     */
+    public void runAll() throws Exception {
+        for (int lines : SOURCE_LINES) {
+            String source = generateSource(lines);
+            String size = Integer.toString(lines);
+            measure("tokenize/" + size, false, () -> {
+                Lexer lexer = new Lexer();
+                lexer.tokenize(new StringReader(source));
+                return lexer.tokenCount();
+            });
+            Lexer lexer = new Lexer();
+            lexer.tokenize(new StringReader(source));
+            measure("parse/" + size, false, () -> Parser.parse(lexer).code.length);
+            String bytecode = Compiler.disassemble(Parser.parse(lexer));
+            measure("compile/" + size, false,
+                    () -> new PeepholeOptimizer().optimize(Compiler.assemble(bytecode)).code.length);
+        }
+        for (Map.Entry<String, String> workload : WORKLOADS.entrySet()) {
+            Program program = Compiler.compileSource(new StringReader(workload.getValue()));
+            measure("load/" + workload.getKey(), false, () -> {
+                Machine m = machine("predecoded");
+                m.load(program);
+                return m.hashCode();
+            });
+            for (String engine : ENGINES) {
+                // only run is timed, not creating and loading the machine
+                measure("run/" + workload.getKey() + "/" + engine, true, () -> {
+                    Machine m = machine(engine);
+                    m.load(program);
+                    long start = System.nanoTime();
+                    m.run();
+                    return System.nanoTime() - start;
+                });
+            }
+        }
+    }
+
+    /**
+     * @return a machine for an engine. Only the memo engine remembers the results of pure functions.
+     */
+    private static Machine machine(String engine) {
+        return new Machine(false, !engine.equals("switch"), engine.equals("jit") ? JitCompiler.DEFAULT_THRESHOLD : 0,
+                Machine.DEFAULT_STACK_SIZE, Machine.DEFAULT_STACK_LIMIT, Machine.DEFAULT_GLOBAL_SIZE,
+                engine.equals("memo") ? Machine.DEFAULT_MEMO_SIZE : 0);
+    }
+
+    /**
+     * @return a source of about the given number of lines that uses every kind of statement
+     */
+    private static String generateSource(int lines) {
+        String[] statements = {"x = x + 1;", "if(x >= 3){ y = f(x, 2) % 7; }", "while(y <= 0){ y = y + 1; }",
+                "print(x * (y - 4) / 2);", "z = !(x < y) && (y > 1) || x != 9;",
+                "for(i = 0; i < 2; i = i + 1){ z = z - i; }"};
+        StringBuilder source = new StringBuilder("func f(a, b){\n    return a * b - 1;\n}\n");
+        for (int i = 0; i < lines; i++) source.append(statements[i % statements.length]).append('\n');
+        return source.toString();
+    }
+
+    /**
+     * Times an operation and prints and keeps the result.
+     * @param selfTimed whether op returns its own time rather than being timed as a whole
+     */
+    private void measure(String name, boolean selfTimed, Operation op) throws Exception {
+        if (!filter.matcher(name).find()) return;
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        double[] times = new double[iterations];
+        try {
+            for (int i = 0; i < warmup; i++) iteration(op, selfTimed);
+            for (int i = 0; i < iterations; i++) times[i] = iteration(op, selfTimed);
+        } finally {
+            System.setOut(out);
+        }
+        double mean = 0, min = Double.MAX_VALUE;
+        for (double t : times) {
+            mean += t / iterations;
+            min = Math.min(min, t);
+        }
+        double variance = 0;
+        for (double t : times) variance += (t - mean) * (t - mean) / Math.max(iterations - 1, 1);
+        Result result = new Result(name, mean, Math.sqrt(variance), min, iterations);
+        results.add(result);
+        System.out.printf(Locale.ROOT, "%-32s %12.4f ms/op  +- %10.4f  (min %.4f)%n", name, mean, result.error, min);
+    }
+
+    /**
+     * @return the milliseconds per operation of an iteration
+     */
+    private static double iteration(Operation op, boolean selfTimed) throws Exception {
+        long start = System.nanoTime(), elapsed;
+        int ops = 0;
+        long acc = 0;
+        do {
+            acc += op.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_ITERATION_NANOS);
+        sink += acc;
+        return (selfTimed ? acc : elapsed) / 1e6 / ops;
+    }
+
+    /**
+     * @return the results as a JSON array of {"benchmark", "unit", "iterations", "score", "error", "min"} objects
+     */
+    public String json() {
+        StringBuilder strB = new StringBuilder("[");
+        String separator = "\n";
+        for (Result r : results) {
+            strB.append(separator).append(String.format(Locale.ROOT, "  {\"benchmark\": \"%s\", \"unit\": \"ms/op\", "
+                    + "\"iterations\": %d, \"score\": %.6f, \"error\": %.6f, \"min\": %.6f}",
+                    r.name, r.iterations, r.mean, r.error, r.min));
+            separator = ",\n";
+        }
+        return strB.append("\n]\n").toString();
+    }
+
+    /**
+     * Reads the scores of a file written by json().
+     * @return the score of each benchmark by name
+     */
+    private static Map<String, Double> readScores(String path) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        Matcher m = Pattern.compile("\"benchmark\": \"([^\"]*)\".*?\"score\": ([0-9.eE+-]+)")
+                .matcher(Files.readString(Path.of(path)));
+        while (m.find()) scores.put(m.group(1), Double.parseDouble(m.group(2)));
+        return scores;
+    }
+
+    /**
+     * Prints the change of every benchmark in both files.
+     * @return the number of benchmarks that got slower by more than tolerance
+     */
+    private static int compare(String basePath, String newPath, double tolerance) throws IOException {
+        Map<String, Double> base = readScores(basePath), current = readScores(newPath);
+        int regressions = 0;
+        for (Map.Entry<String, Double> e : current.entrySet()) {
+            Double before = base.get(e.getKey());
+            if (before == null) continue;
+            double change = e.getValue() / before - 1;
+            boolean regressed = change > tolerance;
+            if (regressed) regressions++;
+            System.out.printf(Locale.ROOT, "%-32s %12.4f -> %12.4f ms/op  %+7.1f%%%s%n", e.getKey(), before,
+                    e.getValue(), 100 * change, regressed ? "  REGRESSION" : "");
+        }
+        return regressions;
+    }
+
+    /**
+     * Runs the benchmarks or compares two result files.
+     * @param args [-wi warmup] [-i iterations] [-o results.json] [filter] (runs the benchmarks whose names match the
+     *             regular expression filter, e.g. "run/fib" or "^parse")
+     *             || compare base.json new.json [tolerance] (exits with status 1 if a benchmark got slower by more
+     *             than tolerance, 0.10 by default)
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("compare")) {
+            double tolerance = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_TOLERANCE;
+            if (compare(args[1], args[2], tolerance) > 0) System.exit(1);
+            return;
+        }
+        int warmup = DEFAULT_WARMUP, iterations = DEFAULT_ITERATIONS;
+        String output = null, filter = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi" -> warmup = Integer.parseInt(args[++i]);
+                case "-i" -> iterations = Integer.parseInt(args[++i]);
+                case "-o" -> output = args[++i];
+                default -> filter = args[i];
+            }
+        }
+        Benchmarks benchmarks = new Benchmarks(warmup, Math.max(iterations, 1), filter);
+        benchmarks.runAll();
+        if (output != null) Files.writeString(Path.of(output), benchmarks.json());
+    }
+}
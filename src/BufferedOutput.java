@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The BufferedOutput class writes printed values one per line, as System.out.println would, but formats them straight
+ * into a byte buffer and writes the buffer when it is full or flushed. Printing allocates nothing and takes no locks.
+ */
+public class BufferedOutput implements OutputSink {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // the longest line: a sign, 10 digits and the line separator
+    private static final int MAX_LINE = 11 + LINE_SEPARATOR.length;
+
+    private final OutputStream stream;  // null to write to whatever System.out is when flushing
+    private final byte[] buffer;
+    private int count = 0;
+
+    /**
+     * Writes to System.out. Replacing System.out (e.g. with System.setOut) also redirects later flushes.
+     */
+    public BufferedOutput() {
+        this(null, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param stream where to write. It is flushed but never closed.
+     * @param bufferSize the number of bytes to hold back
+     */
+    public BufferedOutput(OutputStream stream, int bufferSize) {
+        this.stream = stream;
+        buffer = new byte[Math.max(bufferSize, MAX_LINE)];
+    }
+
+    @Override
+    public void print(int value) {
+        if (count + MAX_LINE > buffer.length) flush();
+        long v = value;     // a long so the smallest int can be negated
+        if (v < 0) {
+            buffer[count++] = '-';
+            v = -v;
+        }
+        int start = count;
+        do {
+            buffer[count++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {     // the digits were written backwards
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        for (byte b : LINE_SEPARATOR) buffer[count++] = b;
+    }
+
+    @Override
+    public void flush() {
+        OutputStream out = stream != null ? stream : System.out;
+        try {
+            out.write(buffer, 0, count);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            count = 0;
+        }
+    }
+}
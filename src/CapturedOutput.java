@@ -0,0 +1,37 @@
+import java.util.Arrays;
+
+/**
+ * The CapturedOutput class keeps printed values as ints, for code that runs programs and wants their results rather
+ * than text.
+ */
+public class CapturedOutput implements OutputSink {
+    private int[] values = new int[16];
+    private int size = 0;
+
+    @Override
+    public void print(int value) {
+        if (size == values.length) values = Arrays.copyOf(values, 2 * size);
+        values[size++] = value;
+    }
+
+    /**
+     * @return the values printed so far, in order
+     */
+    public int[] values() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return the number of values printed so far
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forgets the values printed so far.
+     */
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The CompileCache class keeps the machine code of each top-level function and each run of top-level statements
+ * between functions in a local file (DEFAULT_PATH), so recompiling a large source where one function changed only
+ * generates code for that function. The Parser looks units up by a hash of their tokens and of everything their code
+ * depends on outside them (see Parser.unitKey) and relinks the cached code to the addresses of the new program.
+ * <p>
+ * The whole file is read on the first lookup and written back by save, so a compile does one read and at most one
+ * write however many units it has. The file is a sequence of little-endian ints:
+ * <pre>
+ *     magic ("VCCU"), version, unit count
+ *     for every unit, from the least to the most recently used:
+ *         its key and its size in bytes
+ *         code length, relocation count, global count, locals, inlined calls
+ *         the code
+ *         for every relocation: position, kind, and for CALLEE and CALLEE_LOCALS the function name
+ *         for every global: its name
+ * </pre>
+ * Strings are their length in bytes and the UTF-8 bytes padded with zeros to a multiple of 4 bytes. When the units
+ * take more than the size limit, the least recently used are left out.
+ */
+public class CompileCache {
+    public static final int MAGIC = 'V' | 'C' << 8 | 'C' << 16 | 'U' << 24;    // the bytes "VCCU" in a file
+    public static final int VERSION = 1;    // part of every key, so code from another version is never used
+    public static final String DEFAULT_PATH = ".vcache/units.vcache";
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+    private static final int HEADER_INTS = 3, UNIT_HEADER_INTS = 5;
+
+    // relocation kinds
+    public static final int
+            INTERNAL = 0,       // an address in the unit, stored relative to its start
+            CALLEE = 1,         // the address of a function
+            CALLEE_LOCALS = 2;  // the number of locals of a function
+
+    private final Path path;
+    private final long maxBytes;
+    private LinkedHashMap<String, ByteBuffer> units;    // the stored units by key, in the order of their last use
+    private String[] loadedKeys;    // the keys in the order they were read
+    private boolean stored = false; // whether a unit was added since the file was read
+    private int hits = 0, misses = 0;
+
+    /**
+     * The machine code of a unit with everything needed to link it into a program.
+     */
+    public static class Unit {
+        public final int[] code;
+        public final int[] positions, kinds;    // the relocations
+        public final String[] targets;          // the function each relocation refers to, null for INTERNAL
+        public final int nLocals;               // the frame size of a function, 0 for top-level statements
+        public final String[] globals;          // the globals top-level statements add, in slot order
+        public final int inlines;               // the calls top-level statements inlined
+
+        public Unit(int[] code, int[] positions, int[] kinds, String[] targets, int nLocals, String[] globals,
+                    int inlines) {
+            this.code = code;
+            this.positions = positions;
+            this.kinds = kinds;
+            this.targets = targets;
+            this.nLocals = nLocals;
+            this.globals = globals;
+            this.inlines = inlines;
+        }
+    }
+
+    /**
+     * Builds a key from a sequence of ints, strings and other keys' hashes. The key is a 128-bit hash made of two
+     * 64-bit multiply-rotate hashes with different constants. It is cheap enough to hash every token of a large source
+     * on each compile, but unlike a cryptographic hash it isn't meant to hold up against sources crafted to collide.
+     */
+    public static class Key {
+        private long h1 = 0x9E3779B97F4A7C15L, h2 = 0xC2B2AE3D27D4EB4FL;
+
+        public Key() {
+            add(VERSION);
+        }
+
+        public Key add(int n) {
+            h1 = Long.rotateLeft((h1 ^ n) * 0x87C37B91114253D5L, 31);
+            h2 = Long.rotateLeft((h2 ^ n) * 0x4CF5AD432745937FL, 29) + h1;
+            return this;
+        }
+
+        /**
+         * Adds a string, or null, so that no two sequences give the same hash input.
+         */
+        public Key add(String s) {
+            if (s == null) return add(-1);
+            add(s.length());
+            for (int i = 0; i < s.length(); i++) add(s.charAt(i));
+            return this;
+        }
+
+        /**
+         * Adds the hash of another key.
+         */
+        public Key add(long[] hash) {
+            return add((int) hash[0]).add((int) (hash[0] >>> 32)).add((int) hash[1]).add((int) (hash[1] >>> 32));
+        }
+
+        /**
+         * @return the hash of everything added, as two longs
+         */
+        public long[] hash() {
+            return new long[]{mix(h1 ^ h2), mix(h2 + h1)};
+        }
+
+        private static long mix(long h) {   // the finalizer of MurmurHash3, so every bit of h affects every bit
+            h = (h ^ h >>> 33) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ h >>> 33) * 0xC4CEB9FE1A85EC53L;
+            return h ^ h >>> 33;
+        }
+
+        /**
+         * @return the key as 32 hex digits
+         */
+        public String finish() {
+            long[] hash = hash();
+            char[] digits = new char[32];
+            for (int i = 0; i < 32; i++) {
+                digits[i] = Character.forDigit((int) (hash[i / 16] >>> 60 - 4 * (i % 16)) & 15, 16);
+            }
+            return new String(digits);
+        }
+    }
+
+    /**
+     * A cache in DEFAULT_PATH of at most DEFAULT_MAX_BYTES.
+     */
+    public CompileCache() {
+        this(Path.of(DEFAULT_PATH), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param path the file, which is created when the first unit is saved
+     * @param maxBytes the most the units in the file may take up
+     */
+    public CompileCache(Path path, long maxBytes) {
+        this.path = path;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key a unit's key
+     * @return the unit, or null if it isn't cached or is damaged
+     */
+    public Unit get(String key) {
+        if (units == null) load();
+        ByteBuffer bytes = units.get(key);      // moves the unit to the end, as the most recently used
+        Unit unit = bytes == null ? null : read(bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        if (unit != null) hits++;
+        else misses++;
+        return unit;
+    }
+
+    /**
+     * Reads the file, keeping the units before the first damaged one. A missing file is an empty cache.
+     */
+    private void load() {
+        units = new LinkedHashMap<>(256, 0.75f, true);
+        loadedKeys = new String[0];
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        }
+        if (buffer.remaining() < 4 * HEADER_INTS || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return;
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = readString(buffer);
+            if (key == null || buffer.remaining() < 4) break;
+            int size = buffer.getInt();
+            if (size < 4 * UNIT_HEADER_INTS || size > buffer.remaining() || (size & 3) != 0) break;
+            units.put(key, buffer.slice().limit(size));
+            buffer.position(buffer.position() + size);
+        }
+        loadedKeys = units.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * @return the unit, or null if it is damaged
+     */
+    private static Unit read(ByteBuffer buffer) {
+        int codeLength = buffer.getInt(), nRelocations = buffer.getInt(), nGlobals = buffer.getInt();
+        int nLocals = buffer.getInt(), inlines = buffer.getInt();
+        if (codeLength < 0 || nRelocations < 0 || nGlobals < 0
+                || 4L * (codeLength + 2L * nRelocations + nGlobals) > buffer.remaining()) {
+            return null;
+        }
+        int[] code = new int[codeLength];
+        buffer.asIntBuffer().get(code);
+        buffer.position(buffer.position() + 4 * codeLength);
+        int[] positions = new int[nRelocations], kinds = new int[nRelocations];
+        String[] targets = new String[nRelocations], globals = new String[nGlobals];
+        for (int i = 0; i < nRelocations; i++) {
+            positions[i] = buffer.getInt();
+            kinds[i] = buffer.getInt();
+            if (positions[i] < 0 || positions[i] >= codeLength || kinds[i] < INTERNAL || kinds[i] > CALLEE_LOCALS) {
+                return null;
+            }
+            if (kinds[i] != INTERNAL && (targets[i] = readString(buffer)) == null) return null;
+        }
+        for (int i = 0; i < nGlobals; i++) {
+            if ((globals[i] = readString(buffer)) == null) return null;
+        }
+        return new Unit(code, positions, kinds, targets, nLocals, globals, inlines);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) return null;
+        int length = buffer.getInt();
+        if (length < 0 || length + (-length & 3) > buffer.remaining()) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        buffer.position(buffer.position() + (-length & 3));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a unit, to be written by the next save.
+     * @param key the unit's key
+     * @param unit the unit
+     */
+    public void put(String key, Unit unit) {
+        if (units == null) load();
+        byte[][] targets = new byte[unit.targets.length][], globals = new byte[unit.globals.length][];
+        int size = 4 * (UNIT_HEADER_INTS + unit.code.length + 2 * unit.positions.length);
+        for (int i = 0; i < targets.length; i++) {
+            if (unit.targets[i] == null) continue;
+            size += stringSize(targets[i] = unit.targets[i].getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < globals.length; i++) {
+            size += stringSize(globals[i] = unit.globals[i].getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(unit.code.length).putInt(unit.positions.length).putInt(unit.globals.length)
+                .putInt(unit.nLocals).putInt(unit.inlines);
+        buffer.asIntBuffer().put(unit.code);
+        buffer.position(buffer.position() + 4 * unit.code.length);
+        for (int i = 0; i < unit.positions.length; i++) {
+            buffer.putInt(unit.positions[i]).putInt(unit.kinds[i]);
+            if (targets[i] != null) putString(buffer, targets[i]);
+        }
+        for (byte[] global : globals) putString(buffer, global);
+        units.put(key, buffer.flip());
+        stored = true;
+    }
+
+    private static int stringSize(byte[] s) {
+        return 4 + s.length + (-s.length & 3);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] s) {
+        buffer.putInt(s.length).put(s);
+        buffer.position(buffer.position() + (-s.length & 3));
+    }
+
+    /**
+     * Writes the units back to the file, leaving out the least recently used ones beyond the size limit. Nothing is
+     * written if no unit was added or used out of the order they were read in. Errors are printed and otherwise
+     * ignored, since the units can always be compiled again.
+     */
+    public void save() {
+        if (units == null || !stored && unchanged()) return;
+        long total = 0;
+        for (ByteBuffer unit : units.values()) total += unit.remaining();
+        Iterator<ByteBuffer> oldest = units.values().iterator();
+        while (total > maxBytes && oldest.hasNext()) {
+            total -= oldest.next().remaining();
+            oldest.remove();
+        }
+        int size = 4 * HEADER_INTS;
+        for (Map.Entry<String, ByteBuffer> unit : units.entrySet()) {
+            size += stringSize(unit.getKey().getBytes(StandardCharsets.UTF_8)) + 4 + unit.getValue().remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(units.size());
+        for (Map.Entry<String, ByteBuffer> unit : units.entrySet()) {
+            putString(buffer, unit.getKey().getBytes(StandardCharsets.UTF_8));
+            buffer.putInt(unit.getValue().remaining()).put(unit.getValue().duplicate());
+        }
+        try {
+            Path dir = path.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            // written to a temporary file first so a concurrent compile never reads half a cache
+            Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+            Files.write(tmp, buffer.array());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+        loadedKeys = units.keySet().toArray(new String[0]);
+        stored = false;
+    }
+
+    /**
+     * @return whether the units are still in the order they were read in
+     */
+    private boolean unchanged() {
+        int i = 0;
+        for (String key : units.keySet()) {
+            if (key != loadedKeys[i++]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the lookups that found a unit
+     */
+    public int hits() {
+        return hits;
+    }
+
+    /**
+     * @return the lookups that didn't
+     */
+    public int misses() {
+        return misses;
+    }
+}
@@ -7,9 +7,14 @@
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.stream.Collectors;
@@ -45,7 +50,21 @@ public class Compiler {
             entry("CALL", 24),      // call procedure
             entry("RET", 25),       // return from procedure
             entry("NEG", 26),
-            entry("MOD", 27)
+            entry("MOD", 27),
+            entry("LOADI", 28),     // load from local with an operand
+            entry("GLOADI", 29),    // load from global with an operand
+            entry("JMPI", 30),      // branch to the operand
+            entry("JMPTI", 31),     // branch to the operand if true
+            entry("JMPFI", 32),     // branch to the operand if false
+            entry("DUP", 33),       // copy the top of the stack
+            entry("TCALL", 34),     // call procedure in place of the current one
+            entry("SNAP", 35),      // the point where a snapshot is taken
+            entry("NEWARR", 36),    // allocate an array
+            entry("ALOAD", 37),     // load from an array
+            entry("ASTORE", 38),    // store in an array
+            entry("ALEN", 39),      // the length of an array
+            entry("NATIVE", 40),    // call a host function
+            entry("STOREI", 41)     // store in local with the index as for LOADI
     );
 
     public static final Map<Integer, String> INT_TO_INSTRUCTION = //an inverse map of INSTRUCTIONS
@@ -56,21 +75,32 @@ public class Compiler {
     }
 
     private static ArrayList<String> readFromFile(String infile) {
-        ArrayList<String> tokens = new ArrayList<>();
         try {
-            Scanner in = new Scanner(new File(infile));
-            while (in.hasNextLine()) {
-                String line = in.nextLine();
-                if (!line.contains("#"))
-                    tokens.addAll(Arrays.asList(line.split("\\s")));
-            }
+            return readTokens(new Scanner(new File(infile)));
         } catch (FileNotFoundException e) {
             System.err.println(e);
+            return new ArrayList<>();
+        }
+    }
+
+    private static ArrayList<String> readTokens(Scanner in) {
+        ArrayList<String> tokens = new ArrayList<>();
+        while (in.hasNextLine()) {
+            String line = in.nextLine();
+            if (!line.contains("#"))
+                tokens.addAll(Arrays.asList(line.split("\\s")));
+            else if (line.strip().startsWith("#func "))
+                tokens.add(line.strip());   // keep function comments for the function table
         }
         return tokens;
     }
 
-    private static int[] tokensToInts(ArrayList<String> tokens) {
+    /**
+     * @param tokens instructions, numbers and #func comments
+     * @param functions filled with the name, address and flags of each #func comment (e.g. "#func fib pure")
+     * @return the program
+     */
+    private static int[] tokensToInts(ArrayList<String> tokens, Map<String, int[]> functions) {
         int[] ints = new int[tokens.size()];
         int skippedTokens = 0;
         int prgrmPointer = 0;
@@ -79,6 +109,13 @@ public class Compiler {
                 skippedTokens++;
                 continue;
             }
+            if (token.startsWith("#func ")) {
+                String[] words = token.substring("#func ".length()).strip().split("\\s+");
+                int flags = words.length > 1 && words[1].equals("pure") ? Program.PURE : 0;
+                functions.put(words[0], new int[]{prgrmPointer, flags});
+                skippedTokens++;
+                continue;
+            }
             if (INSTRUCTIONS.containsKey(token)) {
                 ints[prgrmPointer] = INSTRUCTIONS.get(token);
                 prgrmPointer++;
@@ -96,31 +133,112 @@ public class Compiler {
         return Arrays.copyOfRange(ints, 0, ints.length - skippedTokens);
     }
 
-    private static void writeProgram(int[] program, String outfile) {
-        try {
-            File outFile = new File(outfile);
-            outFile.delete();
-            outFile.createNewFile();
-        } catch (Exception e) {
-            System.err.println(e);
+    private static Program assemble(ArrayList<String> tokens) {
+        Map<String, int[]> functions = new LinkedHashMap<>();
+        int[] code = tokensToInts(tokens, functions);
+        return new Program(code, 0, Program.countGlobals(code), functions.keySet().toArray(new String[0]),
+                functions.values().stream().mapToInt(f -> f[0]).toArray(),
+                functions.values().stream().mapToInt(f -> f[1]).toArray());
+    }
+
+    /**
+     * Converts bytecode text (as written to a .vbyt file) to a program in memory.
+     * @param bytecode the bytecode
+     * @return the program
+     */
+    public static Program assemble(String bytecode) {
+        return assemble(readTokens(new Scanner(bytecode)));
+    }
+
+    /**
+     * Converts a program back to bytecode text (the .vbyt format) with a #func comment before each function, followed
+     * by "pure" for pure functions.
+     * @param program the program
+     * @return the bytecode
+     */
+    public static String disassemble(Program program) {
+        Map<Integer, String> functionAt = new HashMap<>();
+        for (int i = 0; i < program.functionNames.length; i++) {
+            functionAt.put(program.functionAddrs[i], program.functionNames[i]
+                    + ((program.functionFlags[i] & Program.PURE) != 0 ? " pure" : ""));
         }
-        try {
-            FileWriter writer = new FileWriter(outfile);
-            for (int instruction : program) {
-                writer.write(Integer.toString(instruction));
-                writer.write(' ');
+        int[] code = program.code;
+        StringBuilder strB = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += 1 + Machine.operandCount(code[pc])) {
+            if (functionAt.containsKey(pc)) strB.append("\n#func ").append(functionAt.get(pc)).append('\n');
+            strB.append(INT_TO_INSTRUCTION.getOrDefault(code[pc], Integer.toString(code[pc])));
+            for (int i = 1; i <= Machine.operandCount(code[pc]) && pc + i < code.length; i++) {
+                strB.append(' ').append(code[pc + i]);
             }
+            strB.append('\n');
+        }
+        return strB.toString();
+    }
 
-            writer.close();
-        } catch (Exception e) {
+    /**
+     * Assembles a bytecode file, optimizes it with the PeepholeOptimizer and writes it as a binary .vcomp file.
+     * @param infile the .vbyt file
+     * @param outfile the .vcomp file
+     */
+    public static void compile(String infile, String outfile) {
+        writeProgram(new PeepholeOptimizer().optimize(assemble(readFromFile(infile))), outfile);
+    }
+
+    private static void writeProgram(Program program, String outfile) {
+        try {
+            program.write(outfile);
+        } catch (IOException e) {
             System.err.println(e);
         }
     }
 
-    public static void compile(String infile, String outfile) {
-        ArrayList<String> tokens = readFromFile(infile);
-        int[] program = tokensToInts(tokens);
-        writeProgram(program, outfile);
+    /**
+     * Lexes, parses, assembles and optimizes source code in memory without writing any files.
+     * @param source the source code
+     * @return the program
+     * @throws UnexpectedTokenException when the source code contains an unrecognized sequence or breaks the grammar
+     */
+    public static Program compileSource(Reader source) throws UnexpectedTokenException {
+        return compileSource(source, null);
+    }
+
+    /**
+     * Lexes, parses, assembles and optimizes source code in memory.
+     * @param source the source code
+     * @param dumpPath if not null, the intermediate results are also written to dumpPath.vlex, dumpPath.vbyt and
+     *                 dumpPath.vcomp for debugging
+     * @return the program
+     * @throws UnexpectedTokenException when the source code contains an unrecognized sequence or breaks the grammar
+     */
+    public static Program compileSource(Reader source, String dumpPath) throws UnexpectedTokenException {
+        return compileSource(source, dumpPath, null);
+    }
+
+    /**
+     * Lexes, parses, assembles and optimizes source code in memory, reusing the code of the top-level functions and
+     * statements that haven't changed since they were stored in a cache.
+     * @param source the source code
+     * @param dumpPath if not null, the intermediate results are also written to dumpPath.vlex, dumpPath.vbyt and
+     *                 dumpPath.vcomp for debugging
+     * @param cache the cache, or null to compile everything
+     * @return the program
+     * @throws UnexpectedTokenException when the source code contains an unrecognized sequence or breaks the grammar
+     */
+    public static Program compileSource(Reader source, String dumpPath, CompileCache cache)
+            throws UnexpectedTokenException {
+        Lexer lexer = new Lexer();
+        lexer.tokenize(source);
+        if (dumpPath != null) lexer.writeLexed(dumpPath + ".vlex");
+        Program program = new PeepholeOptimizer().optimize(Parser.parse(lexer, cache));
+        if (dumpPath != null) {
+            try {
+                Files.writeString(Path.of(dumpPath + ".vbyt"), disassemble(program));
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+            writeProgram(program, dumpPath + ".vcomp");
+        }
+        return program;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * The Emitter class collects machine code in a growable int array. Jumps and calls can name a label before its
+ * address is known; every use of a label is patched in one pass when the code is finished.
+ */
+public class Emitter {
+    private int[] code = new int[256];
+    private int size = 0;
+    private int[] labels = new int[16];     // the address of every label, -1 until it is bound
+    private int labelCount = 0;
+    private int[] fixups = new int[32];     // pairs of (position in code, label) to patch
+    private int fixupCount = 0;
+
+    /**
+     * @return the address the next word will be written to
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * appends an instruction without operands
+     * @param op the instruction code
+     */
+    public void emit(int op) {
+        if (size == code.length) code = Arrays.copyOf(code, 2 * size);
+        code[size++] = op;
+    }
+
+    /**
+     * appends an instruction with one operand
+     * @param op the instruction code
+     * @param operand the operand
+     */
+    public void emit(int op, int operand) {
+        emit(op);
+        emit(operand);
+    }
+
+    /**
+     * appends words as they are, e.g. code compiled earlier
+     * @param words the words
+     */
+    public void emitAll(int[] words) {
+        if (size + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(2 * code.length, size + words.length));
+        }
+        System.arraycopy(words, 0, code, size, words.length);
+        size += words.length;
+    }
+
+    /**
+     * appends a word that will be replaced by the address of label
+     * @param label a label from newLabel
+     */
+    public void emitLabel(int label) {
+        fixup(size, label);
+        emit(-1);
+    }
+
+    /**
+     * replaces a word that was already written by the address of label when the code is finished
+     * @param position the position of the word
+     * @param label a label from newLabel
+     */
+    public void fixup(int position, int label) {
+        if (fixupCount == fixups.length) fixups = Arrays.copyOf(fixups, 2 * fixupCount);
+        fixups[fixupCount++] = position;
+        fixups[fixupCount++] = label;
+    }
+
+    /**
+     * @return the number of label uses so far. Uses are numbered in the order they were written.
+     */
+    public int fixupCount() {
+        return fixupCount / 2;
+    }
+
+    /**
+     * @param i the number of a label use
+     * @return the position of the word that is replaced
+     */
+    public int fixupPosition(int i) {
+        return fixups[2 * i];
+    }
+
+    /**
+     * @param i the number of a label use
+     * @return the label whose address replaces it
+     */
+    public int fixupLabel(int i) {
+        return fixups[2 * i + 1];
+    }
+
+    /**
+     * @return a new label that is not bound to an address yet
+     */
+    public int newLabel() {
+        if (labelCount == labels.length) labels = Arrays.copyOf(labels, 2 * labelCount);
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    /**
+     * binds a label to the address of the next word
+     * @param label a label from newLabel
+     */
+    public void bind(int label) {
+        labels[label] = size;
+    }
+
+    /**
+     * binds a label to a value that is not an address, e.g. a frame size that is only known once a function's code is
+     * written
+     * @param label a label from newLabel
+     * @param value the value (not negative)
+     */
+    public void define(int label, int value) {
+        labels[label] = value;
+    }
+
+    /**
+     * @param label a label from newLabel
+     * @return the address the label is bound to or -1
+     */
+    public int address(int label) {
+        return labels[label];
+    }
+
+    /**
+     * Patches every use of a label with its address.
+     * @return the code
+     * @throws IllegalStateException if a label that is used was never bound
+     */
+    public int[] finish() {
+        for (int i = 0; i < fixupCount; i += 2) {
+            int address = labels[fixups[i + 1]];
+            if (address < 0) throw new IllegalStateException("label " + fixups[i + 1] + " is used but never bound");
+            code[fixups[i]] = address;
+        }
+        return Arrays.copyOf(code, size);
+    }
+}
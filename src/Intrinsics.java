@@ -0,0 +1,177 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The Intrinsics class is the registry of host functions: functions written in Java that a program calls by name like
+ * its own functions. A call to one compiles to NATIVE with the function's index in the registry, which the machines run
+ * without a frame. A function the program declares itself hides a host function of the same name, so existing scripts
+ * keep their meaning.
+ * <p>
+ * abs, min, max, pow and the bit operations are registered first. Since compiled programs hold indexes, functions
+ * registered with register() have to be registered in the same order before a program that uses them is compiled and
+ * before it runs.
+ */
+public class Intrinsics {
+
+    /**
+     * A host function with any number of arguments. It must only read its arguments: args is the caller's stack (or
+     * registers), so the rest of it belongs to the program.
+     */
+    public interface Host {
+        /**
+         * @param args holds argument i at args[first - i], as the arguments are pushed last first for CALL
+         * @param first the index of the first argument
+         * @return the result
+         */
+        int call(int[] args, int first);
+    }
+
+    /**
+     * A registered host function.
+     */
+    public static class Intrinsic {
+        public final String name;
+        public final int index;     // the operand of NATIVE
+        public final int arity;
+        public final boolean pure;  // the result only depends on the arguments, so callers may be memoized
+        final Host host;
+        final IntUnaryOperator unary;       // the operator it was registered as if it takes one argument, else null
+        final IntBinaryOperator binary;     // the same for two arguments
+
+        Intrinsic(String name, int index, int arity, boolean pure, Host host, IntUnaryOperator unary,
+                  IntBinaryOperator binary) {
+            this.name = name;
+            this.index = index;
+            this.arity = arity;
+            this.pure = pure;
+            this.host = host;
+            this.unary = unary;
+            this.binary = binary;
+        }
+
+        /**
+         * Calls the function on arguments pushed last first, as for CALL, and puts the result in place of the deepest.
+         * @param stack the stack
+         * @param sp the index of the first argument, on top
+         * @return the new stack pointer
+         */
+        int call(int[] stack, int sp) {
+            int result;
+            if (unary != null) result = unary.applyAsInt(stack[sp]);
+            else if (binary != null) result = binary.applyAsInt(stack[sp], stack[sp - 1]);
+            else result = host.call(stack, sp);
+            sp -= arity - 1;
+            stack[sp] = result;
+            return sp;
+        }
+    }
+
+    private static final Map<String, Intrinsic> BY_NAME = new HashMap<>();
+    private static volatile Intrinsic[] table = new Intrinsic[0];
+
+    static {
+        register("abs", Math::abs);
+        register("min", Math::min);
+        register("max", Math::max);
+        register("pow", Intrinsics::pow);
+        register("bitand", (a, b) -> a & b);
+        register("bitor", (a, b) -> a | b);
+        register("bitxor", (a, b) -> a ^ b);
+        register("bitnot", a -> ~a);
+        register("shl", (a, b) -> a << b);
+        register("shr", (a, b) -> a >> b);
+        register("ushr", (a, b) -> a >>> b);
+        register("bitcount", Integer::bitCount);
+    }
+
+    /**
+     * Registers a host function of one argument. It is taken to be pure.
+     * @param name the name programs call it by
+     * @param op the function
+     * @return its index
+     */
+    public static int register(String name, IntUnaryOperator op) {
+        return add(name, 1, true, (args, first) -> op.applyAsInt(args[first]), op, null);
+    }
+
+    /**
+     * Registers a host function of two arguments. It is taken to be pure.
+     * @param name the name programs call it by
+     * @param op the function
+     * @return its index
+     */
+    public static int register(String name, IntBinaryOperator op) {
+        return add(name, 2, true, (args, first) -> op.applyAsInt(args[first], args[first - 1]), null,
+                op);
+    }
+
+    /**
+     * Registers a host function with any number of arguments. Compiled code leaves calls to it to the interpreter,
+     * which can pass the arguments in place; register an operator to have it called from compiled code.
+     * @param name the name programs call it by
+     * @param arity the number of arguments
+     * @param pure whether the result only depends on the arguments and there are no side effects
+     * @param host the function
+     * @return its index
+     */
+    public static int register(String name, int arity, boolean pure, Host host) {
+        return add(name, arity, pure, host, null, null);
+    }
+
+    private static synchronized int add(String name, int arity, boolean pure, Host host, IntUnaryOperator unary,
+                                        IntBinaryOperator binary) {
+        if (BY_NAME.containsKey(name)) throw new IllegalArgumentException("Intrinsic " + name + " already registered");
+        if (arity < 0) throw new IllegalArgumentException("Negative arity " + arity + " for " + name);
+        Intrinsic intrinsic = new Intrinsic(name, table.length, arity, pure, host, unary, binary);
+        BY_NAME.put(name, intrinsic);
+        Intrinsic[] t = Arrays.copyOf(table, table.length + 1);
+        t[intrinsic.index] = intrinsic;
+        table = t;
+        return intrinsic.index;
+    }
+
+    /**
+     * @param name a name
+     * @return the host function of that name, null if there is none
+     */
+    public static synchronized Intrinsic lookup(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * @param index an index
+     * @return the host function with that index, null if there is none
+     */
+    public static Intrinsic get(int index) {
+        Intrinsic[] t = table;
+        return index >= 0 && index < t.length ? t[index] : null;
+    }
+
+    /**
+     * @return every host function by index. The array is never changed, so a run can keep it.
+     */
+    static Intrinsic[] table() {
+        return table;
+    }
+
+    /**
+     * @return base to the power exponent with int overflow, by squaring. A negative exponent gives 1 / base to the
+     * power -exponent rounded towards 0 as DIV does, so base 0 fails the same way.
+     */
+    static int pow(int base, int exponent) {
+        if (exponent < 0) {
+            if (base == 0) throw new ArithmeticException("/ by zero");
+            return base == 1 ? 1 : base == -1 ? ((exponent & 1) == 0 ? 1 : -1) : 0;
+        }
+        int result = 1;
+        while (exponent != 0) {
+            if ((exponent & 1) != 0) result *= base;
+            base *= base;
+            exponent >>>= 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,849 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The JitCompiler class counts calls to each function address of a program and, once a function has been called more
+ * than a threshold number of times, translates it into JVM bytecode. The function and every function it calls are
+ * written as static methods of one hidden class. VM locals and arguments become JVM locals and the VM operand stack
+ * becomes the JVM operand stack, so HotSpot can compile the result like any other Java method.
+ * <p>
+ * Anything that can not be translated (computed jump targets or addresses, HALT inside a function, frame accesses
+ * outside the arguments and locals, inconsistent stack depths, host functions that weren't registered as operators)
+ * leaves the function to the interpreter.
+ * <p>
+ * Compiled functions call each other on the Java stack, which is much smaller than the machine's. Each call passes its
+ * depth, and a call nested more than MAX_DEPTH deep runs in the interpreter on the machine's stack instead, so deep
+ * recursion does what it does without the JIT.
+ */
+public class JitCompiler {
+    public static final int DEFAULT_THRESHOLD = 1000;
+    // the deepest compiled calls nest on the Java stack before the interpreter takes over
+    public static final int MAX_DEPTH = 512;
+    private static final String CLASS_NAME = "JitCode";  // the name of the hidden classes
+
+    private final int[] program;
+    private final int threshold;
+    private final int[] callCounts;   // calls per function address
+    private final Compiled[] compiled;  // the compiled code for each function address
+    private final boolean[] failed;     // addresses that could not be translated
+    private final boolean[] interpreted;    // addresses that must stay in the interpreter, e.g. memoized functions
+    private final int halt;     // the address of a HALT that ends interpreted calls from compiled code, -1 if none
+
+    /**
+     * The entry point of a compiled function for the interpreter.
+     */
+    interface CompiledCode {
+        /**
+         * @param fn the index of the function in its hidden class
+         * @param m the machine that called the function
+         * @param globals the machine's global memory
+         * @param stack the machine's stack
+         * @param base the address of the first pushed argument on stack
+         * @return the return value of the function
+         */
+        int invoke(int fn, Machine m, int[] globals, int[] stack, int base);
+    }
+
+    /**
+     * A compiled function.
+     */
+    static class Compiled {
+        final CompiledCode code;
+        final int index;
+
+        Compiled(CompiledCode code, int index) {
+            this.code = code;
+            this.index = index;
+        }
+    }
+
+    /**
+     * @param program the program the machine runs
+     * @param threshold the number of calls after which a function is compiled
+     */
+    public JitCompiler(int[] program, int threshold) {
+        this.program = program;
+        this.threshold = threshold;
+        callCounts = new int[program.length];
+        compiled = new Compiled[program.length];
+        failed = new boolean[program.length];
+        interpreted = new boolean[program.length];
+        halt = haltAddress(program);
+    }
+
+    /**
+     * @return the address of the last HALT among the instructions of program, -1 if there is none
+     */
+    private static int haltAddress(int[] program) {
+        int halt = -1;
+        for (int pc = 0; pc < program.length; pc += 1 + Machine.operandCount(program[pc])) {
+            if (program[pc] == Machine.HALT) halt = pc;
+        }
+        return halt;
+    }
+
+    /**
+     * @return the address of the HALT that Machine.callInterpreted returns to
+     */
+    int halt() {
+        return halt;
+    }
+
+    /**
+     * Keeps a function in the interpreter. Functions that call it are not compiled either.
+     * @param addr the address of the function
+     */
+    public void interpret(int addr) {
+        interpreted[addr] = true;
+        failed[addr] = true;
+    }
+
+    /**
+     * Counts a call and returns the compiled code for the function if there is any.
+     * @param addr the address of the function
+     * @param nArgs the number of arguments from the CALL instruction
+     * @param nLocals the number of locals from the CALL instruction
+     * @return the compiled function or null if it should be interpreted
+     */
+    public Compiled lookup(int addr, int nArgs, int nLocals) {
+        if (addr < 0 || addr >= program.length) return null;
+        Compiled c = compiled[addr];
+        if (c != null || failed[addr]) return c;
+        if (++callCounts[addr] < threshold) return null;
+        compileUnit(addr, nArgs, nLocals);
+        return compiled[addr];
+    }
+
+    /**
+     * @return the number of function addresses that have been compiled
+     */
+    public int compiledCount() {
+        int n = 0;
+        for (Compiled c : compiled) if (c != null) n++;
+        return n;
+    }
+
+    /**
+     * Translates a function and everything it calls. Either all of them are compiled or the hot function is marked as
+     * failed. Nothing is compiled in a program without a HALT, since deep calls couldn't return from the interpreter.
+     */
+    private void compileUnit(int addr, int nArgs, int nLocals) {
+        if (halt < 0) {
+            failed[addr] = true;
+            return;
+        }
+        ArrayList<Function> unit = new ArrayList<>();
+        Map<Integer, Function> byAddr = new HashMap<>();
+        ArrayList<Function> worklist = new ArrayList<>();
+        Function root = new Function(addr, nArgs, nLocals, 0);
+        unit.add(root);
+        byAddr.put(addr, root);
+        worklist.add(root);
+        while (!worklist.isEmpty()) {
+            Function f = worklist.remove(worklist.size() - 1);
+            if (!analyze(f)) {
+                failed[addr] = true;
+                return;
+            }
+            for (int[] call : f.calls) {
+                if (call[0] >= 0 && call[0] < program.length && interpreted[call[0]]) {
+                    failed[addr] = true;
+                    return;
+                }
+                Function callee = byAddr.get(call[0]);
+                if (callee == null) {
+                    callee = new Function(call[0], call[1], call[2], unit.size());
+                    unit.add(callee);
+                    byAddr.put(call[0], callee);
+                    worklist.add(callee);
+                } else if (callee.nArgs != call[1] || callee.nLocals != call[2]) {
+                    failed[addr] = true;    // the same address called with different frames
+                    return;
+                }
+            }
+        }
+        try {
+            byte[] bytes = new ClassBuilder(unit, byAddr).build();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            CompiledCode code = (CompiledCode) lookup.findConstructor(lookup.lookupClass(),
+                    java.lang.invoke.MethodType.methodType(void.class)).invoke();
+            for (Function f : unit) {
+                if (compiled[f.addr] == null) compiled[f.addr] = new Compiled(code, f.index);
+            }
+        } catch (Throwable e) {
+            System.err.println("jit: could not compile function at " + addr + ": " + e);
+            failed[addr] = true;
+        }
+    }
+
+    /**
+     * A VM function being translated.
+     */
+    private static class Function {
+        final int addr, nArgs, nLocals, index;
+        int[] depth;    // the operand stack depth before each reachable instruction, -1 if unreachable
+        int maxDepth;
+        ArrayList<int[]> calls = new ArrayList<>();   // {addr, nArgs, nLocals} of every call
+
+        Function(int addr, int nArgs, int nLocals, int index) {
+            this.addr = addr;
+            this.nArgs = nArgs;
+            this.nLocals = nLocals;
+            this.index = index;
+        }
+    }
+
+    /**
+     * @return the kind of the instruction at pc: its opcode, or the immediate-operand opcode for a CONST followed by
+     * an instruction that takes its operand from the stack (e.g. CONST n LOAD is translated as LOADI n).
+     */
+    private int kindAt(int pc) {
+        int op = program[pc];
+        if (op == Machine.CONST && pc + 2 < program.length) {
+            switch (program[pc + 2]) {
+                case Machine.LOAD -> {
+                    return Machine.LOADI;
+                }
+                case Machine.GLOAD -> {
+                    return Machine.GLOADI;
+                }
+                case Machine.JMP -> {
+                    return Machine.JMPI;
+                }
+                case Machine.JMPT -> {
+                    return Machine.JMPTI;
+                }
+                case Machine.JMPF -> {
+                    return Machine.JMPFI;
+                }
+            }
+        }
+        return op;
+    }
+
+    /**
+     * @return the number of words taken by the instruction at pc
+     */
+    private int lengthAt(int pc, int kind) {
+        return program[pc] == Machine.CONST && kind != Machine.CONST ? 3 : 1 + Machine.operandCount(kind);
+    }
+
+    /**
+     * @param idx a local index as used by LOAD and STOREI (negative for arguments)
+     * @return the offset of the local from fp
+     */
+    private static int frameOffset(int idx) {
+        return idx < 0 ? idx - 2 : idx + 1;
+    }
+
+    /**
+     * @return the offset from fp that the STORE or STOREI at pc writes
+     */
+    private int storeOffset(int pc) {
+        return program[pc] == Machine.STORE ? 1 - program[pc + 1] : frameOffset(program[pc + 1]);
+    }
+
+    /**
+     * Maps a frame offset from fp (as used by LOAD and STOREI) to a JVM local. Arguments are the first JVM locals in
+     * the order they were pushed, followed by the Machine, the global memory, the call depth and the VM locals.
+     * @return the JVM local or -1 if the offset is outside of the arguments and locals
+     */
+    private static int jvmLocal(Function f, int offset) {
+        if (offset >= 1 && offset <= f.nLocals) return f.nArgs + 2 + offset;
+        if (offset <= -3 && offset >= -2 - f.nArgs) return offset + f.nArgs + 2;
+        return -1;
+    }
+
+    /**
+     * Follows the control flow of a function from its address and records the stack depth before every instruction.
+     * @return whether the function can be translated
+     */
+    private boolean analyze(Function f) {
+        f.depth = new int[program.length];
+        Arrays.fill(f.depth, -1);
+        ArrayList<Integer> worklist = new ArrayList<>();
+        f.depth[f.addr] = 0;
+        worklist.add(f.addr);
+        while (!worklist.isEmpty()) {
+            int pc = worklist.remove(worklist.size() - 1);
+            int d = f.depth[pc];
+            int kind = kindAt(pc);
+            int len = lengthAt(pc, kind);
+            if (pc + len > program.length) return false;
+            int next = pc + len;
+            int target = -1;
+            switch (kind) {
+                case Machine.ADD, Machine.SUB, Machine.MUL, Machine.DIV, Machine.MOD, Machine.LT, Machine.GT,
+                        Machine.LEQ, Machine.GEQ, Machine.EQ, Machine.AND, Machine.OR -> {
+                    if (d < 2) return false;
+                    d--;
+                }
+                case Machine.NOT, Machine.NEG, Machine.NEWARR, Machine.ALEN -> {
+                    if (d < 1) return false;
+                }
+                case Machine.ALOAD -> {
+                    if (d < 2) return false;
+                    d--;
+                }
+                case Machine.ASTORE -> {
+                    if (d < 3) return false;
+                    d -= 3;
+                }
+                case Machine.NATIVE -> {
+                    // compiled code calls host functions through the operators they were registered as
+                    Intrinsics.Intrinsic intrinsic = Intrinsics.get(program[pc + 1]);
+                    if (intrinsic == null || (intrinsic.unary == null && intrinsic.binary == null)
+                            || d < intrinsic.arity) {
+                        return false;
+                    }
+                    d = d - intrinsic.arity + 1;
+                }
+                case Machine.CONST -> d++;
+                case Machine.DUP -> {
+                    if (d < 1) return false;
+                    d++;
+                }
+                case Machine.LOADI -> {
+                    if (jvmLocal(f, frameOffset(program[pc + 1])) < 0) return false;
+                    d++;
+                }
+                case Machine.GLOADI -> d++;
+                case Machine.STORE, Machine.STOREI -> {
+                    if (d < 1 || jvmLocal(f, storeOffset(pc)) < 0) return false;
+                    d--;
+                }
+                case Machine.GSTORE, Machine.PRINT, Machine.POP -> {
+                    if (d < 1) return false;
+                    d--;
+                }
+                case Machine.JMPI -> {
+                    target = program[pc + 1];
+                    next = -1;
+                }
+                case Machine.JMPTI, Machine.JMPFI -> {
+                    if (d < 1) return false;
+                    d--;
+                    target = program[pc + 1];
+                }
+                case Machine.CALL -> {
+                    int nArgs = program[pc + 2];
+                    if (d < nArgs) return false;
+                    d = d - nArgs + 1;
+                    f.calls.add(new int[]{program[pc + 1], nArgs, program[pc + 3]});
+                    if (program[pc + 1] < 0 || program[pc + 1] >= program.length) return false;
+                }
+                case Machine.TCALL -> {
+                    int nArgs = program[pc + 2];
+                    // a call to itself becomes a jump back to the start, where the JVM stack has to be empty
+                    if (d < nArgs || (program[pc + 1] == f.addr && d != nArgs)) return false;
+                    f.calls.add(new int[]{program[pc + 1], nArgs, program[pc + 3]});
+                    if (program[pc + 1] < 0 || program[pc + 1] >= program.length) return false;
+                    next = -1;
+                }
+                case Machine.RET -> {
+                    if (d < 1) return false;
+                    next = -1;
+                }
+                default -> {
+                    return false;   // HALT, computed addresses and unknown codes
+                }
+            }
+            f.maxDepth = Math.max(f.maxDepth, Math.max(d, f.depth[pc]));
+            for (int succ : new int[]{next, target}) {
+                if (succ < 0) continue;
+                if (succ >= program.length) return false;
+                if (f.depth[succ] == -1) {
+                    f.depth[succ] = d;
+                    worklist.add(succ);
+                } else if (f.depth[succ] != d) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // helpers called from compiled code for operations that need a branch in JVM bytecode
+    static int lt(int a, int b) {
+        return a < b ? 1 : 0;
+    }
+
+    static int gt(int a, int b) {
+        return a > b ? 1 : 0;
+    }
+
+    static int leq(int a, int b) {
+        return a <= b ? 1 : 0;
+    }
+
+    static int geq(int a, int b) {
+        return a >= b ? 1 : 0;
+    }
+
+    static int eq(int a, int b) {
+        return a == b ? 1 : 0;
+    }
+
+    static int and(int a, int b) {
+        return a == 1 && b == 1 ? 1 : 0;
+    }
+
+    static int or(int a, int b) {
+        return a == 1 || b == 1 ? 1 : 0;
+    }
+
+    static int not(int a) {
+        return a == 1 ? 0 : a == 0 ? 1 : a;
+    }
+
+    static void print(Machine m, int n) {
+        m.print(n);
+    }
+
+    // helpers for the array instructions, which take the address of the instruction for their error messages
+    static int newArray(int length, Machine m, int pc) {
+        return m.heap().allocate(length, pc);
+    }
+
+    static int arrayLoad(int array, int index, Machine m, int pc) {
+        return m.heap().load(array, index, pc);
+    }
+
+    static void arrayStore(int array, int index, int value, Machine m, int pc) {
+        m.heap().store(array, index, value, pc);
+    }
+
+    static int arrayLength(int array, Machine m, int pc) {
+        return m.heap().length(array, pc);
+    }
+
+    // runs a call nested deeper than MAX_DEPTH in the interpreter
+    static int interpret(int[] args, Machine m, int addr, int nLocals) {
+        return m.callInterpreted(addr, args, nLocals);
+    }
+
+    // helpers for NATIVE, which take the index of the host function
+    static int intrinsic1(int a, int index) {
+        return Intrinsics.get(index).unary.applyAsInt(a);
+    }
+
+    // the arguments are pushed last first, as for CALL
+    static int intrinsic2(int second, int first, int index) {
+        return Intrinsics.get(index).binary.applyAsInt(first, second);
+    }
+
+    /**
+     * Writes the class file for a unit of functions. The class is version 49 so the JVM verifies it by type inference
+     * and no stack map frames have to be written.
+     */
+    private class ClassBuilder {
+        private final ArrayList<Function> unit;
+        private final Map<Integer, Function> byAddr;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final Map<String, Integer> poolIndices = new HashMap<>();
+        private int poolCount = 1;
+
+        ClassBuilder(ArrayList<Function> unit, Map<Integer, Function> byAddr) {
+            this.unit = unit;
+            this.byAddr = byAddr;
+        }
+
+        byte[] build() {
+            ByteArrayOutputStream methods = new ByteArrayOutputStream();
+            writeMethod(methods, 0x0001, "<init>", "()V", 1, 1, initCode());
+            int maxArgs = 0;
+            for (Function f : unit) maxArgs = Math.max(maxArgs, f.nArgs);
+            writeMethod(methods, 0x0001, "invoke", "(ILMachine;[I[II)I", maxArgs + 3, 6, invokeCode());
+            for (Function f : unit) {
+                Code code = functionCode(f);
+                writeMethod(methods, 0x000A, "f" + f.index, descriptor(f), f.maxDepth + 4,
+                        f.nArgs + 3 + f.nLocals, code);
+            }
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef("JitCompiler$CompiledCode");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            u4(out, 0xCAFEBABE);
+            u2(out, 0);
+            u2(out, 49);
+            u2(out, poolCount);
+            out.writeBytes(pool.toByteArray());
+            u2(out, 0x0031);    // public final super
+            u2(out, thisClass);
+            u2(out, superClass);
+            u2(out, 1);
+            u2(out, iface);
+            u2(out, 0);         // fields
+            u2(out, unit.size() + 2);
+            out.writeBytes(methods.toByteArray());
+            u2(out, 0);         // attributes
+            return out.toByteArray();
+        }
+
+        private String descriptor(Function f) {
+            return "(" + "I".repeat(f.nArgs) + "LMachine;[II)I";
+        }
+
+        private Code initCode() {
+            Code c = new Code(this);
+            c.op(0x2A);     // aload_0
+            c.op(0xB7);     // invokespecial
+            c.u2(methodRef("java/lang/Object", "<init>", "()V"));
+            c.op(0xB1);     // return
+            return c;
+        }
+
+        /**
+         * The bridge from the interpreter: switches on the function index and loads the arguments from the stack.
+         */
+        private Code invokeCode() {
+            Code c = new Code(this);
+            c.op(0x1B);     // iload_1
+            int start = c.size();
+            c.op(0xAA);     // tableswitch
+            while (c.size() % 4 != 0) c.op(0);
+            int defaultAt = c.size();
+            c.u4(0);
+            c.u4(0);
+            c.u4(unit.size() - 1);
+            int tableAt = c.size();
+            for (int i = 0; i < unit.size(); i++) c.u4(0);
+            for (Function f : unit) {
+                c.patch4(tableAt + 4 * f.index, c.size() - start);
+                for (int j = 0; j < f.nArgs; j++) {
+                    c.op(0x19);     // aload
+                    c.op(4);
+                    c.op(0x15);     // iload
+                    c.op(5);
+                    c.push(j);
+                    c.op(0x60);     // iadd
+                    c.op(0x2E);     // iaload
+                }
+                c.op(0x2C);     // aload_2
+                c.op(0x2D);     // aload_3
+                c.op(0x03);     // iconst_0, the depth of a call from the interpreter
+                c.op(0xB8);     // invokestatic
+                c.u2(methodRef(CLASS_NAME, "f" + f.index, descriptor(f)));
+                c.op(0xAC);     // ireturn
+            }
+            c.patch4(defaultAt, c.size() - start);
+            c.op(0x02);     // iconst_m1
+            c.op(0xAC);     // ireturn
+            return c;
+        }
+
+        private Code functionCode(Function f) {
+            Code c = new Code(this);
+            int mLocal = f.nArgs, globalsLocal = f.nArgs + 1, depthLocal = f.nArgs + 2;
+            // past MAX_DEPTH the call is made again in the interpreter
+            c.iload(depthLocal);
+            c.push(MAX_DEPTH);
+            int check = c.size();
+            c.op(0xA1);     // if_icmplt
+            c.u2(0);
+            c.push(f.nArgs);
+            c.op(0xBC);     // newarray
+            c.op(10);       // int
+            for (int j = 0; j < f.nArgs; j++) {
+                c.op(0x59);     // dup
+                c.push(j);
+                c.iload(j);
+                c.op(0x4F);     // iastore
+            }
+            c.aload(mLocal);
+            c.push(f.addr);
+            c.push(f.nLocals);
+            helper(c, "interpret", "([ILMachine;II)I");
+            c.op(0xAC);     // ireturn
+            c.patch2(check + 1, c.size() - check);
+            for (int i = 1; i <= f.nLocals; i++) {  // the JVM needs every local written before it is read
+                c.op(0x03);     // iconst_0
+                c.istore(jvmLocal(f, i));
+            }
+            int[] offsets = new int[program.length];
+            ArrayList<int[]> fixups = new ArrayList<>();    // {position of the jump, position of the offset, target pc}
+            int pc = nextReachable(f, 0);
+            while (pc >= 0) {
+                offsets[pc] = c.size();
+                int kind = kindAt(pc);
+                int next = pc + lengthAt(pc, kind);
+                boolean fallsThrough = true;
+                switch (kind) {
+                    case Machine.ADD -> c.op(0x60);
+                    case Machine.SUB -> c.op(0x64);
+                    case Machine.MUL -> c.op(0x68);
+                    case Machine.DIV -> c.op(0x6C);
+                    case Machine.MOD -> c.op(0x70);
+                    case Machine.NEG -> c.op(0x74);
+                    case Machine.LT -> helper(c, "lt", "(II)I");
+                    case Machine.GT -> helper(c, "gt", "(II)I");
+                    case Machine.LEQ -> helper(c, "leq", "(II)I");
+                    case Machine.GEQ -> helper(c, "geq", "(II)I");
+                    case Machine.EQ -> helper(c, "eq", "(II)I");
+                    case Machine.AND -> helper(c, "and", "(II)I");
+                    case Machine.OR -> helper(c, "or", "(II)I");
+                    case Machine.NOT -> helper(c, "not", "(I)I");
+                    case Machine.CONST -> c.push(program[pc + 1]);
+                    case Machine.LOADI -> {
+                        c.iload(jvmLocal(f, frameOffset(program[pc + 1])));
+                    }
+                    case Machine.GLOADI -> {
+                        c.aload(globalsLocal);
+                        c.push(program[pc + 1]);
+                        c.op(0x2E);     // iaload
+                    }
+                    case Machine.STORE, Machine.STOREI -> c.istore(jvmLocal(f, storeOffset(pc)));
+                    case Machine.GSTORE -> {
+                        c.aload(globalsLocal);
+                        c.op(0x5F);     // swap
+                        c.push(program[pc + 1]);
+                        c.op(0x5F);     // swap
+                        c.op(0x4F);     // iastore
+                    }
+                    case Machine.PRINT -> {
+                        c.aload(mLocal);
+                        c.op(0x5F);     // swap
+                        helper(c, "print", "(LMachine;I)V");
+                    }
+                    case Machine.NEWARR, Machine.ALOAD, Machine.ASTORE, Machine.ALEN -> {
+                        c.aload(mLocal);
+                        c.push(pc);
+                        switch (kind) {
+                            case Machine.NEWARR -> helper(c, "newArray", "(ILMachine;I)I");
+                            case Machine.ALOAD -> helper(c, "arrayLoad", "(IILMachine;I)I");
+                            case Machine.ASTORE -> helper(c, "arrayStore", "(IIILMachine;I)V");
+                            default -> helper(c, "arrayLength", "(ILMachine;I)I");
+                        }
+                    }
+                    case Machine.NATIVE -> {
+                        c.push(program[pc + 1]);
+                        if (Intrinsics.get(program[pc + 1]).unary != null) helper(c, "intrinsic1", "(II)I");
+                        else helper(c, "intrinsic2", "(III)I");
+                    }
+                    case Machine.POP -> c.op(0x57);
+                    case Machine.DUP -> c.op(0x59);
+                    case Machine.JMPI -> {
+                        fixups.add(new int[]{c.size(), c.size() + 1, program[pc + 1]});
+                        c.op(0xA7);     // goto
+                        c.u2(0);
+                        fallsThrough = false;
+                    }
+                    case Machine.JMPTI -> {
+                        c.op(0x04);     // iconst_1
+                        fixups.add(new int[]{c.size(), c.size() + 1, program[pc + 1]});
+                        c.op(0x9F);     // if_icmpeq
+                        c.u2(0);
+                    }
+                    case Machine.JMPFI -> {
+                        fixups.add(new int[]{c.size(), c.size() + 1, program[pc + 1]});
+                        c.op(0x99);     // ifeq
+                        c.u2(0);
+                    }
+                    case Machine.CALL -> {
+                        Function callee = byAddr.get(program[pc + 1]);
+                        c.aload(mLocal);
+                        c.aload(globalsLocal);
+                        c.iload(depthLocal);
+                        c.op(0x04);     // iconst_1
+                        c.op(0x60);     // iadd
+                        c.op(0xB8);     // invokestatic
+                        c.u2(methodRef(CLASS_NAME, "f" + callee.index, descriptor(callee)));
+                    }
+                    case Machine.TCALL -> {
+                        Function callee = byAddr.get(program[pc + 1]);
+                        if (callee == f) {
+                            // the first argument is on top of the stack
+                            for (int j = f.nArgs - 1; j >= 0; j--) c.istore(j);
+                            int at = c.size();
+                            c.op(0xA7);     // goto the start, which clears the locals again
+                            c.u2(-at);
+                        } else {
+                            c.aload(mLocal);
+                            c.aload(globalsLocal);
+                            c.iload(depthLocal);
+                            c.op(0x04);     // iconst_1
+                            c.op(0x60);     // iadd
+                            c.op(0xB8);     // invokestatic
+                            c.u2(methodRef(CLASS_NAME, "f" + callee.index, descriptor(callee)));
+                            c.op(0xAC);     // ireturn
+                        }
+                        fallsThrough = false;
+                    }
+                    case Machine.RET -> {
+                        c.op(0xAC);     // ireturn
+                        fallsThrough = false;
+                    }
+                }
+                int following = nextReachable(f, pc + 1);
+                if (fallsThrough && following != next) {
+                    fixups.add(new int[]{c.size(), c.size() + 1, next});
+                    c.op(0xA7);     // goto
+                    c.u2(0);
+                }
+                pc = following;
+            }
+            for (int[] fixup : fixups) {
+                c.patch2(fixup[1], offsets[fixup[2]] - fixup[0]);
+            }
+            if (c.size() > Short.MAX_VALUE) throw new IllegalStateException("function too large");
+            return c;
+        }
+
+        private int nextReachable(Function f, int from) {
+            for (int pc = Math.max(from, f.addr); pc < program.length; pc++) {
+                if (f.depth[pc] >= 0) return pc;
+            }
+            for (int pc = from; pc < f.addr; pc++) {
+                if (f.depth[pc] >= 0) return pc;
+            }
+            return -1;
+        }
+
+        private void helper(Code c, String name, String descriptor) {
+            c.op(0xB8);     // invokestatic
+            c.u2(methodRef("JitCompiler", name, descriptor));
+        }
+
+        private void writeMethod(ByteArrayOutputStream out, int access, String name, String descriptor,
+                                 int maxStack, int maxLocals, Code code) {
+            if (maxLocals > 255) throw new IllegalStateException("too many locals");
+            u2(out, access);
+            u2(out, utf8(name));
+            u2(out, utf8(descriptor));
+            u2(out, 1);
+            u2(out, utf8("Code"));
+            u4(out, 12 + code.size());
+            u2(out, maxStack);
+            u2(out, maxLocals);
+            u4(out, code.size());
+            out.writeBytes(code.toByteArray());
+            u2(out, 0);     // exception table
+            u2(out, 0);     // attributes
+        }
+
+        private int utf8(String s) {
+            Integer idx = poolIndices.get("U" + s);
+            if (idx != null) return idx;
+            byte[] bytes = s.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            pool.write(1);
+            u2(pool, bytes.length);
+            pool.writeBytes(bytes);
+            poolIndices.put("U" + s, poolCount);
+            return poolCount++;
+        }
+
+        private int classRef(String name) {
+            Integer idx = poolIndices.get("C" + name);
+            if (idx != null) return idx;
+            int nameIdx = utf8(name);
+            pool.write(7);
+            u2(pool, nameIdx);
+            poolIndices.put("C" + name, poolCount);
+            return poolCount++;
+        }
+
+        private int methodRef(String owner, String name, String descriptor) {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer idx = poolIndices.get(key);
+            if (idx != null) return idx;
+            int classIdx = classRef(owner);
+            int nameIdx = utf8(name), descIdx = utf8(descriptor);
+            pool.write(12);     // name and type
+            u2(pool, nameIdx);
+            u2(pool, descIdx);
+            int nameAndType = poolCount++;
+            pool.write(10);
+            u2(pool, classIdx);
+            u2(pool, nameAndType);
+            poolIndices.put(key, poolCount);
+            return poolCount++;
+        }
+
+        private int intConstant(int n) {
+            Integer idx = poolIndices.get("I" + n);
+            if (idx != null) return idx;
+            pool.write(3);
+            u4(pool, n);
+            poolIndices.put("I" + n, poolCount);
+            return poolCount++;
+        }
+    }
+
+    /**
+     * The bytes of a method's code.
+     */
+    private static class Code extends ByteArrayOutputStream {
+        private final ClassBuilder builder;   // for the constant pool
+
+        Code(ClassBuilder builder) {
+            this.builder = builder;
+        }
+
+        void op(int b) {
+            write(b);
+        }
+
+        void u2(int n) {
+            JitCompiler.u2(this, n);
+        }
+
+        void u4(int n) {
+            JitCompiler.u4(this, n);
+        }
+
+        void patch2(int at, int n) {
+            buf[at] = (byte) (n >> 8);
+            buf[at + 1] = (byte) n;
+        }
+
+        void patch4(int at, int n) {
+            patch2(at, n >> 16);
+            patch2(at + 2, n);
+        }
+
+        void push(int n) {
+            if (n >= -1 && n <= 5) {
+                op(0x03 + n);   // iconst_<n>
+            } else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+                op(0x10);       // bipush
+                op(n & 0xFF);
+            } else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+                op(0x11);       // sipush
+                u2(n);
+            } else {
+                op(0x13);       // ldc_w
+                u2(builder.intConstant(n));
+            }
+        }
+
+        void iload(int local) {
+            op(0x15);
+            op(local);
+        }
+
+        void istore(int local) {
+            op(0x36);
+            op(local);
+        }
+
+        void aload(int local) {
+            op(0x19);
+            op(local);
+        }
+    }
+
+    private static void u2(ByteArrayOutputStream out, int n) {
+        out.write(n >> 8);
+        out.write(n);
+    }
+
+    private static void u4(ByteArrayOutputStream out, int n) {
+        u2(out, n >> 16);
+        u2(out, n);
+    }
+}
@@ -4,149 +4,254 @@
  * @author Henning Fischel
  */
 
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 public class Lexer {
 
-    public static Map<String, String> OPERATION_STRINGS = Map.ofEntries(
-            Map.entry("var", "VAR_DEC"),
-            Map.entry("func", "FUNC_DEC"),
-            Map.entry("\\+", "ADD"),
-            Map.entry("-", "SUB"),
-            Map.entry("\\*", "MUL"),
-            Map.entry("\\/", "DIV"),
-            Map.entry(">", "GT"),
-            Map.entry(">=", "GEQ"),
-            Map.entry("<", "LT"),
-            Map.entry("<=", "LEQ"),
-            Map.entry("==", "EQ"),
-            Map.entry("!", "NOT"),
-            Map.entry("!=", "NEQ"),
-            Map.entry("\\|\\|", "OR"),
-            Map.entry("\\&\\&", "AND"),
-            Map.entry("\\(", "OPEN_PAREN"),
-            Map.entry("\\)", "CLOSE_PAREN"),
-            Map.entry("\\{", "OPEN_BRACE"),
-            Map.entry("\\}", "CLOSE_BRACE"),
-            Map.entry("if", "IF"),
-            Map.entry("else", "ELSE"),
-            Map.entry("while", "WHILE"),
-            Map.entry("for", "FOR"),
-            Map.entry("[0-9]", "CONST"),
-            Map.entry("^[a-zA-Z][a-zA-Z0-9]*$", "REF"),
-            Map.entry(";", "SEMI"),
-            Map.entry("print", "PRINT"),
-            Map.entry("=", "ASSIGN"),
-            Map.entry("return", "RET"),
-            Map.entry(",", "COMMA"),
-            Map.entry("%", "MOD")
-    );
-    ArrayList<String> rawTokens;
-    ArrayList<ArrayList<String>> tokensWithTypes;
-    String splitRegex;
+    // the token types
+    public static final int
+            VAR_DEC = 0,
+            FUNC_DEC = 1,
+            ADD = 2,
+            SUB = 3,
+            MUL = 4,
+            DIV = 5,
+            GT = 6,
+            GEQ = 7,
+            LT = 8,
+            LEQ = 9,
+            EQ = 10,
+            NOT = 11,
+            NEQ = 12,
+            OR = 13,
+            AND = 14,
+            OPEN_PAREN = 15,
+            CLOSE_PAREN = 16,
+            OPEN_BRACE = 17,
+            CLOSE_BRACE = 18,
+            IF = 19,
+            ELSE = 20,
+            WHILE = 21,
+            FOR = 22,
+            CONST = 23,
+            REF = 24,
+            SEMI = 25,
+            PRINT = 26,
+            ASSIGN = 27,
+            RET = 28,
+            COMMA = 29,
+            MOD = 30,
+            OPEN_BRACKET = 31,
+            CLOSE_BRACKET = 32;
+
+    // the names of the token types as the Parser and .vlex files use them
+    public static final String[] TYPE_NAMES = {"VAR_DEC", "FUNC_DEC", "ADD", "SUB", "MUL", "DIV", "GT", "GEQ", "LT",
+            "LEQ", "EQ", "NOT", "NEQ", "OR", "AND", "OPEN_PAREN", "CLOSE_PAREN", "OPEN_BRACE", "CLOSE_BRACE", "IF",
+            "ELSE", "WHILE", "FOR", "CONST", "REF", "SEMI", "PRINT", "ASSIGN", "RET", "COMMA", "MOD", "OPEN_BRACKET",
+            "CLOSE_BRACKET"};
+
+    private static final String[] KEYWORDS = {"var", "func", "if", "else", "while", "for", "print", "return"};
+    private static final int[] KEYWORD_TYPES = {VAR_DEC, FUNC_DEC, IF, ELSE, WHILE, FOR, PRINT, RET};
+
+    private char[] source;
+    private int[] types, starts, ends;  // the type and source offsets of every token
+    private int tokenCount;
 
     public Lexer() {
-        rawTokens = new ArrayList<>();
-        tokensWithTypes = new ArrayList<>();
-        // the tokens to split around
-        ArrayList<String> extraSplitTokens = new ArrayList<>(Arrays.asList("\\(", "\\)", "\\[", "\\]", "\\{", "\\}",
-                "<", ">", "<=", ">=", "\\+", "-", "\\/", "\\*", "=", "==", "!=", ";", "\\|\\|", "\\&\\&",","));
-        splitRegex = "\\t|\\n| ";
-        for (String s : extraSplitTokens) splitRegex = splitRegex.concat("|((?=" + s + ")|(?<=" + s + "))");
+        types = new int[256];
+        starts = new int[256];
+        ends = new int[256];
     }
 
     /**
-     * Read input from a file skipping comments
-     *
-     * @param infile the filepath to read from
+     * tokenize a file from source code to parsable codes. Writes a file with the same name as the source code file but
+     * with the extension .vlex.
+     * @param inPath the filepath of the source-code
+     * @throws UnexpectedTokenException when the source code contains an unreconized sequence
      */
-    private void readFromFile(String infile) {
+    public void tokenize(String inPath) throws UnexpectedTokenException {
+        char[] chars;
         try {
-            Scanner in = new Scanner(new File(infile));
-            boolean multiLineComment = false;
-            while (in.hasNextLine()) {
-                String line = in.nextLine();
-                if (line.contains("/*")) multiLineComment = true;
-                if (line.contains("*/")) {
-                    multiLineComment = false;
-                    while (line.contains("*/")) {
-                        line = line.replace("*/", "");
-                    }
-                }
-                if (multiLineComment) continue;
-                if (line.contains("#")) continue;
-                //split removing whitespace and around parens
-                ArrayList<String> lineToks = new ArrayList<>(Arrays.asList(line.split(splitRegex)));
-                lineToks.removeIf(String::isEmpty);
-                rawTokens.addAll(lineToks);
+            chars = Files.readString(Path.of(inPath)).toCharArray();
+        } catch (IOException e) {
+            System.err.println(e);
+            chars = new char[0];
+        }
+        scan(chars, chars.length);
+        writeLexed(inPath.substring(0, inPath.lastIndexOf('.')) + ".vlex");
+    }
+
+    /**
+     * tokenize source code in memory without writing a .vlex file. The tokens are read with tokenCount, type and text.
+     * @param source the source code
+     * @throws UnexpectedTokenException when the source code contains an unreconized sequence
+     */
+    public void tokenize(Reader source) throws UnexpectedTokenException {
+        char[] chars = new char[8192];
+        int length = 0;
+        try {
+            for (int n; (n = source.read(chars, length, chars.length - length)) >= 0; ) {
+                length += n;
+                if (length == chars.length) chars = Arrays.copyOf(chars, 2 * length);
             }
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             System.err.println(e);
         }
+        scan(chars, length);
     }
 
     /**
-     * tokenize a file from source code to parsable codes. Writes a file with the same name as the source code file but
-     * with the extension .vlex.
-     * @param inPath the filepath of the source-code
-     * @throws UnexpectedTokenException when the source code contains an unreconized sequence (i.e. one not in
-     * OPERATION_STRINGS
+     * Splits source code into tokens in one pass over its characters. Whitespace, block comments and the text from a #
+     * to the end of the line are skipped. Operators are matched longest first (e.g. "<=" before "<") and words are
+     * keywords or references.
+     * @param source the source code
+     * @param length the number of characters of source to read
+     * @throws UnexpectedTokenException at the first character that can't start a token
      */
-    public void tokenize(String inPath) throws UnexpectedTokenException {
-        readFromFile(inPath);
-        Set<String> keys = OPERATION_STRINGS.keySet();
-        String refRegex = "^[a-zA-Z][a-zA-Z0-9]*$";
-        for (int i=0; i<rawTokens.size();i++) {
-            String s = rawTokens.get(i);
-            boolean matched = false;
-            if(s.matches("<|>|=") && rawTokens.get(i+1).equals("=")){
-                s = s+"=";
+    public void scan(char[] source, int length) throws UnexpectedTokenException {
+        this.source = source;
+        tokenCount = 0;
+        int i = 0;
+        while (i < length) {
+            char c = source[i];
+            char next = i + 1 < length ? source[i + 1] : 0;
+            int start = i;
+            int type;
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
                 i++;
-            }
-            for (String regex : keys) {
-                //make sure if/while/... statements don't match with variable and function references
-                if (OPERATION_STRINGS.get(regex).equals("REF")) continue;
-                else if (s.matches(regex)) {
-                    tokensWithTypes.add(new ArrayList<>(Arrays.asList(s, OPERATION_STRINGS.get(regex))));
-                    matched = true;
-                    break;
+                continue;
+            } else if (c == '/' && next == '*') {   // block comment
+                i += 2;
+                while (i < length && !(source[i] == '*' && i + 1 < length && source[i + 1] == '/')) i++;
+                i = Math.min(i + 2, length);
+                continue;
+            } else if (c == '#') {  // line comment
+                while (i < length && source[i] != '\n') i++;
+                continue;
+            } else if (isLetter(c)) {
+                while (i < length && (isLetter(source[i]) || isDigit(source[i]))) i++;
+                type = wordType(source, start, i);
+            } else if (isDigit(c)) {
+                while (i < length && isDigit(source[i])) i++;
+                type = CONST;
+            } else {
+                switch (c) {
+                    case '+' -> type = ADD;
+                    case '-' -> type = SUB;
+                    case '*' -> type = MUL;
+                    case '/' -> type = DIV;
+                    case '%' -> type = MOD;
+                    case '>' -> type = next == '=' ? GEQ : GT;
+                    case '<' -> type = next == '=' ? LEQ : LT;
+                    case '=' -> type = next == '=' ? EQ : ASSIGN;
+                    case '!' -> type = next == '=' ? NEQ : NOT;
+                    case '|' -> type = next == '|' ? OR : -1;
+                    case '&' -> type = next == '&' ? AND : -1;
+                    case '(' -> type = OPEN_PAREN;
+                    case ')' -> type = CLOSE_PAREN;
+                    case '{' -> type = OPEN_BRACE;
+                    case '}' -> type = CLOSE_BRACE;
+                    case '[' -> type = OPEN_BRACKET;
+                    case ']' -> type = CLOSE_BRACKET;
+                    case ';' -> type = SEMI;
+                    case ',' -> type = COMMA;
+                    default -> type = -1;
                 }
+                if (type < 0) throw new UnexpectedTokenException(String.valueOf(c));
+                i += type == GEQ || type == LEQ || type == EQ || type == NEQ || type == OR || type == AND ? 2 : 1;
             }
-            if (!matched) {
-                if (s.matches(refRegex)) {
-                    tokensWithTypes.add(new ArrayList<>(Arrays.asList(s, OPERATION_STRINGS.get(refRegex))));
-                } else {
-                    throw new UnexpectedTokenException(s);
-                }
+            if (tokenCount == types.length) {
+                types = Arrays.copyOf(types, 2 * tokenCount);
+                starts = Arrays.copyOf(starts, 2 * tokenCount);
+                ends = Arrays.copyOf(ends, 2 * tokenCount);
             }
+            types[tokenCount] = type;
+            starts[tokenCount] = start;
+            ends[tokenCount] = i;
+            tokenCount++;
         }
-        writeLexed(inPath.substring(0, inPath.lastIndexOf('.')) + ".vlex");
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return the keyword type of source[start, end) or REF if it is not a keyword
+     */
+    private static int wordType(char[] source, int start, int end) {
+        for (int k = 0; k < KEYWORDS.length; k++) {
+            String keyword = KEYWORDS[k];
+            if (keyword.length() != end - start) continue;
+            int j = 0;
+            while (j < keyword.length() && keyword.charAt(j) == source[start + j]) j++;
+            if (j == keyword.length()) return KEYWORD_TYPES[k];
+        }
+        return REF;
+    }
+
+    /**
+     * @return the number of tokens found by the last scan
+     */
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * @param i the index of a token
+     * @return the token's type
+     */
+    public int type(int i) {
+        return types[i];
+    }
+
+    /**
+     * @param i the index of a token
+     * @return the offset of the token's first character in the source
+     */
+    public int start(int i) {
+        return starts[i];
+    }
+
+    /**
+     * @param i the index of a token
+     * @return the offset after the token's last character in the source
+     */
+    public int end(int i) {
+        return ends[i];
+    }
+
+    /**
+     * @param i the index of a token
+     * @return the token as it is written in the source
+     */
+    public String text(int i) {
+        return new String(source, starts[i], ends[i] - starts[i]);
     }
 
     /**
      * writes the lexed tokens to a file.
      * @param outfile the file to write to.
      */
-    private void writeLexed(String outfile) {
-        try {
-            File outFile = new File(outfile);
-            outFile.delete();
-            outFile.createNewFile();
-        } catch (Exception e) {
-            System.err.println(e);
-        }
-        try {
-            FileWriter writer = new FileWriter(outfile);
-            for (ArrayList<String> tokenAndType : tokensWithTypes) {
-                writer.write(tokenAndType.get(1) + " " + tokenAndType.get(0));
+    void writeLexed(String outfile) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outfile))) {
+            for (int i = 0; i < tokenCount; i++) {
+                writer.write(TYPE_NAMES[types[i]]);
+                writer.write(' ');
+                writer.write(source, starts[i], ends[i] - starts[i]);
                 writer.write('\n');
             }
-
-            writer.close();
-        } catch (Exception e) {
+        } catch (IOException e) {
             System.err.println(e);
         }
     }
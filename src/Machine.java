@@ -5,17 +5,53 @@
  * @author Henning Fischel
  */
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
 
 public class Machine {
     private int[] programMemory, stack, globalMem;
     private int pc, sp, fp;
     private int a, b;
     private boolean done, debug = false;
+    private boolean predecode = false;  // run with the pre-decoded engine rather than the switch loop
+    private int[] decoded;      // the pre-decoded program: an opcode and a resolved operand for every address
+    private int jitThreshold = 0;   // calls before a function is compiled to JVM bytecode, 0 to never compile
+    private JitCompiler jit;
+    private int stackLimit = DEFAULT_STACK_LIMIT;   // the largest the stack may grow to
+    private int memoSize = DEFAULT_MEMO_SIZE;   // results kept for each pure function, 0 to never memoize
+    private Program program;    // the loaded program, null if it was loaded as plain ints
+    private MemoCache[] memo;   // the cache of each memoized function by address, null for the others
+    private MemoCache[] memoCaches;     // the cache of each function in the program's function table, null if none
+    // the arguments, their count and the address of every memoized call still running
+    private int[] pending = new int[64];
+    private int pendingTop = 0;
+    private Profiler profiler;  // counts every instruction run, null when not profiling
+    private OutputSink out = new BufferedOutput();  // receives the values PRINTed
+    private int[] costs;    // the instructions in the basic block each instruction ends, 0 if it doesn't end one
+    private long fuel;      // the instructions left in the current run
+    private boolean metered;    // whether the current run has a budget, so it can't use compiled code
+    private boolean stopAtSnapshot;     // whether a run ends at SNAP
+    private boolean snapped;    // whether the last run ended at SNAP
+    private ArrayHeap heap = new ArrayHeap();   // the arrays the program allocates
+    private boolean stackSized;     // whether the stack holds all the verified program can use, see sizeStack
+    private int instructionPc;      // the address of the instruction the switch loop is running, for errors
+    private int compiledBase;   // where the arguments of the compiled function the interpreter called began
+
+    // what run(maxInstructions) returns
+    public final static int HALTED = 0, SUSPENDED = 1, AT_SNAPSHOT = 2;
+
+    public final static int DEFAULT_STACK_SIZE = 1024, DEFAULT_STACK_LIMIT = 1 << 22, DEFAULT_GLOBAL_SIZE = 300,
+            DEFAULT_MEMO_SIZE = 4096;
+    // a function's cache is dropped if fewer than MEMO_MIN_HIT_RATE of its first MEMO_TRIAL misses' lookups hit
+    private final static int MEMO_TRIAL = 1024;
+    private final static double MEMO_MIN_HIT_RATE = 0.05;
+    // stack slots kept free above a new frame's locals for the operands of its expressions
+    private final static int STACK_MARGIN = 256;
 
     // the instruction set for the machine
     public final static int
@@ -45,7 +81,30 @@ public class Machine {
             CALL = 24,      // call procedure
             RET = 25,       // return from procedure
             NEG = 26,       // negate an int
-            MOD = 27;       // modulo
+            MOD = 27,       // modulo
+            LOADI = 28,     // load from local with the index as an operand
+            GLOADI = 29,    // load from global with the index as an operand
+            JMPI = 30,      // branch to the address operand
+            JMPTI = 31,     // branch to the address operand if true
+            JMPFI = 32,     // branch to the address operand if false
+            DUP = 33,       // push a copy of the top of the stack
+            TCALL = 34,     // call procedure in place of the current one (a call in tail position)
+            SNAP = 35,      // mark the point where a snapshot is taken, see setStopAtSnapshot
+            NEWARR = 36,    // replace a length by a new array of that many zeros
+            ALOAD = 37,     // replace an array and an index by the element
+            ASTORE = 38,    // pop an array, an index and a value and store the value in the element
+            ALEN = 39,      // replace an array by its length
+            NATIVE = 40,    // replace the arguments of a host function (see Intrinsics) by its result
+            STOREI = 41;    // store in local with the index as for LOADI
+
+    // instructions that only exist in pre-decoded programs
+    private final static int
+            LOAD_K = 100,   // CONST n LOAD with the frame offset resolved
+            GLOAD_K = 101,  // CONST n GLOAD
+            JMP_K = 102,    // CONST addr JMP
+            JMPT_K = 103,   // CONST addr JMPT
+            JMPF_K = 104,   // CONST addr JMPF
+            TRUNCATED = 105;    // an instruction whose operands run past the end of the program
 
     public Machine(int[] program) {
         sp = -1;
@@ -53,25 +112,26 @@ public class Machine {
         fp = 0;
         done = false;
         programMemory = program;
-        stack = new int[100];
-        globalMem = new int[300];
+        stack = new int[DEFAULT_STACK_SIZE];
+        globalMem = new int[DEFAULT_GLOBAL_SIZE];
+        reserveGlobals(Program.countGlobals(program));
     }
 
     public Machine(String filepath) {
         sp = -1;
         pc = 0;
         done = false;
+        stack = new int[DEFAULT_STACK_SIZE];
+        globalMem = new int[DEFAULT_GLOBAL_SIZE];
         load(filepath);
-        stack = new int[100];
-        globalMem = new int[300];
     }
 
     public Machine() {
         sp = -1;
         pc = 0;
         done = false;
-        stack = new int[100];
-        globalMem = new int[300];
+        stack = new int[DEFAULT_STACK_SIZE];
+        globalMem = new int[DEFAULT_GLOBAL_SIZE];
     }
 
     public Machine(boolean debug) {
@@ -79,8 +139,73 @@ public class Machine {
         pc = 0;
         this.debug = debug;
         done = false;
-        stack = new int[100];
-        globalMem = new int[300];
+        stack = new int[DEFAULT_STACK_SIZE];
+        globalMem = new int[DEFAULT_GLOBAL_SIZE];
+    }
+
+    /**
+     * @param debug print every instruction and the stack while running
+     * @param predecode decode programs once at load time and run them with the pre-decoded engine. Debug runs always
+     *                  use the switch loop.
+     */
+    public Machine(boolean debug, boolean predecode) {
+        this(debug);
+        this.predecode = predecode;
+    }
+
+    /**
+     * @param debug print every instruction and the stack while running. Functions are never compiled in debug runs.
+     * @param predecode decode programs once at load time and run them with the pre-decoded engine
+     * @param jitThreshold the number of calls after which a function is compiled to JVM bytecode (0 to never compile)
+     */
+    public Machine(boolean debug, boolean predecode, int jitThreshold) {
+        this(debug, predecode);
+        this.jitThreshold = jitThreshold;
+    }
+
+    /**
+     * @param debug print every instruction and the stack while running
+     * @param predecode decode programs once at load time and run them with the pre-decoded engine
+     * @param jitThreshold the number of calls after which a function is compiled to JVM bytecode (0 to never compile)
+     * @param stackSize the initial size of the stack. It grows when a call needs more room.
+     * @param stackLimit the size the stack may grow to before a call fails with a MachineException
+     * @param globalSize the number of global variables. Loading a program that stores to a higher index grows it.
+     */
+    public Machine(boolean debug, boolean predecode, int jitThreshold, int stackSize, int stackLimit, int globalSize) {
+        this(debug, predecode, jitThreshold);
+        this.stackLimit = Math.max(stackLimit, STACK_MARGIN);
+        stack = new int[Math.min(Math.max(stackSize, 1), this.stackLimit)];
+        globalMem = new int[Math.max(globalSize, 0)];
+    }
+
+    /**
+     * @param debug print every instruction and the stack while running. Functions are never memoized in debug runs.
+     * @param predecode decode programs once at load time and run them with the pre-decoded engine
+     * @param jitThreshold the number of calls after which a function is compiled to JVM bytecode (0 to never compile)
+     * @param stackSize the initial size of the stack. It grows when a call needs more room.
+     * @param stackLimit the size the stack may grow to before a call fails with a MachineException
+     * @param globalSize the number of global variables. Loading a program that stores to a higher index grows it.
+     * @param memoSize the number of results to remember for each pure function (0 to never memoize)
+     */
+    public Machine(boolean debug, boolean predecode, int jitThreshold, int stackSize, int stackLimit, int globalSize,
+                   int memoSize) {
+        this(debug, predecode, jitThreshold, stackSize, stackLimit, globalSize);
+        this.memoSize = Math.max(memoSize, 0);
+    }
+
+    /**
+     * Limits the memory of the arrays of the following runs. Replacing the limit frees the arrays already allocated.
+     * @param words the number of ints all arrays may take together, counting one more for each array's length
+     */
+    public void setHeapLimit(int words) {
+        heap = new ArrayHeap(words);
+    }
+
+    /**
+     * @return the arrays, for compiled code
+     */
+    ArrayHeap heap() {
+        return heap;
     }
 
     /**
@@ -88,16 +213,135 @@ public class Machine {
      * @param path
      */
     public void load(String path) {
+        Program program;
         try {
-            ArrayList<Integer> tmp = new ArrayList<Integer>();
-            Scanner in = new Scanner(new File(path));
-            while (in.hasNextInt()) {
-                tmp.add(in.nextInt());
-            }
-            programMemory = tmp.stream().mapToInt(Integer::intValue).toArray();
-        } catch (FileNotFoundException e) {
+            program = Program.read(path);
+        } catch (IOException | NumberFormatException e) {
             System.err.println(e);
-            programMemory = new int[]{HALT};
+            program = new Program(new int[]{HALT});
+        }
+        load(program);
+    }
+
+    /**
+     * loads a compiled program and starts it at its entry point
+     * @param program
+     */
+    public void load(Program program) {
+        reject(program);
+        this.program = program;
+        programMemory = program.code;
+        pc = program.entryPoint;
+        reserveGlobals(program.globalCount);
+        decoded = predecode ? program.decoded() : null;
+        costs = program.costs();
+        stackSized = false;
+        jit = jitThreshold > 0 && !debug && profiler == null ? new JitCompiler(programMemory, jitThreshold) : null;
+        setUpMemo();
+    }
+
+    /**
+     * Gets the machine ready to run the loaded program again from its entry point with empty registers, stack, globals
+     * and heap. Its memory is kept rather than allocated again, as are its compiled functions and memoized results,
+     * which don't depend on the globals.
+     */
+    public void reset() {
+        pc = program != null ? program.entryPoint : 0;
+        sp = -1;
+        fp = 0;
+        done = false;
+        pendingTop = 0;
+        Arrays.fill(globalMem, 0);
+        heap.clear();
+    }
+
+    /**
+     * @param index a global variable's index
+     * @param value its new value
+     */
+    public void setGlobal(int index, int value) {
+        reserveGlobals(index + 1);
+        globalMem[index] = value;
+    }
+
+    /**
+     * @param index a global variable's index
+     * @return its value
+     */
+    public int getGlobal(int index) {
+        return index < globalMem.length ? globalMem[index] : 0;
+    }
+
+    /**
+     * Makes the following runs stop after a SNAP (the snapshot statement) and return AT_SNAPSHOT, so the state can be
+     * taken with snapshot(). SNAP does nothing otherwise.
+     * @param stop whether to stop at SNAP
+     */
+    public void setStopAtSnapshot(boolean stop) {
+        stopAtSnapshot = stop;
+    }
+
+    /**
+     * @return whether runs stop at SNAP
+     */
+    boolean stopsAtSnapshot() {
+        return stopAtSnapshot;
+    }
+
+    /**
+     * Takes the state of a machine that isn't running: its registers, the live part of its stack, its globals up to
+     * the last one that isn't 0, its arrays and its program. A suspended run can be snapshotted as well as one stopped
+     * at SNAP, unless it is inside a memoized call, whose arguments the machine keeps outside the stack.
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        if (pendingTop != 0) throw new IllegalStateException("Can't snapshot at pc " + pc + " inside a memoized call");
+        int used = globalMem.length;
+        while (used > 0 && globalMem[used - 1] == 0) used--;
+        return new Snapshot(program != null ? program : new Program(programMemory), pc, sp, fp,
+                Arrays.copyOf(stack, sp + 1), Arrays.copyOf(globalMem, used), heap.contents());
+    }
+
+    /**
+     * Puts the machine in the state of a snapshot, ready for run to carry on from where the snapshot was taken. The
+     * program is only loaded if it isn't the one already loaded, so a machine restored from the same snapshot again
+     * keeps its compiled functions and memoized results, as with reset().
+     * @param snapshot the snapshot
+     */
+    public void restore(Snapshot snapshot) {
+        if (program != snapshot.program) load(snapshot.program);
+        reserveGlobals(snapshot.globals.length);
+        System.arraycopy(snapshot.globals, 0, globalMem, 0, snapshot.globals.length);
+        Arrays.fill(globalMem, snapshot.globals.length, globalMem.length, 0);
+        heap.restore(snapshot.heap);
+        reserveStack(snapshot.sp, 0, snapshot.pc);
+        System.arraycopy(snapshot.stack, 0, stack, 0, snapshot.stack.length);
+        pc = snapshot.pc;
+        sp = snapshot.sp;
+        fp = snapshot.fp;
+        done = false;
+        pendingTop = 0;
+        stackSized = false;
+    }
+
+    /**
+     * Gives every pure function of the loaded program a cache of its results. Memoized functions stay in the
+     * interpreter, since compiled code calls functions without going through CALL.
+     */
+    private void setUpMemo() {
+        memo = null;
+        memoCaches = null;
+        pendingTop = 0;
+        if (debug || memoSize == 0) return;
+        for (int i = 0; i < program.functionAddrs.length; i++) {
+            int addr = program.functionAddrs[i];
+            if ((program.functionFlags[i] & Program.PURE) == 0 || addr < 0 || addr >= programMemory.length) continue;
+            if (memo == null) {
+                memo = new MemoCache[programMemory.length];
+                memoCaches = new MemoCache[program.functionAddrs.length];
+            }
+            memo[addr] = memoCaches[i] = new MemoCache(memoSize);
+            if (jit != null) jit.interpret(addr);
         }
     }
 
@@ -106,16 +350,133 @@ public class Machine {
      * @param program
      */
     public void load(int[] program) {
+        reject(new Program(program));
+        this.program = null;
+        memo = null;
+        memoCaches = null;
         programMemory = program.clone();
+        stackSized = false;
+        reserveGlobals(Program.countGlobals(programMemory));
+        if (predecode) decoded = decode(programMemory);
+        costs = blockCosts(programMemory);
+        jit = jitThreshold > 0 && !debug && profiler == null ? new JitCompiler(programMemory, jitThreshold) : null;
+    }
+
+    /**
+     * @throws MachineException if the Verifier found a fault in the program, e.g. a jump out of the code
+     */
+    private static void reject(Program program) {
+        Verifier.Result verification = program.verification();
+        if (verification.faulty) throw new MachineException("Program rejected: " + verification.error);
+    }
+
+    /**
+     * Profiles the following runs. They use the switch loop and functions are not compiled, so every instruction is
+     * counted. The other engines don't check for a profiler at all.
+     * @param profiler the profiler to report to, null to stop profiling and compile functions again
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+        if (profiler != null) {
+            jit = null;
+        } else if (jit == null && programMemory != null && jitThreshold > 0 && !debug) {
+            jit = new JitCompiler(programMemory, jitThreshold);
+            if (memo != null) for (int addr = 0; addr < memo.length; addr++) if (memo[addr] != null) jit.interpret(addr);
+        }
+    }
+
+    /**
+     * @return the profiler, null when not profiling
+     */
+    Profiler profiler() {
+        return profiler;
+    }
+
+    /**
+     * Sends the values PRINTed by the following runs to a sink. By default they are written to System.out through a
+     * BufferedOutput, so they only appear as the buffer fills and when a run ends.
+     * @param out the sink
+     */
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     * @return the sink the values PRINTed go to
+     */
+    OutputSink output() {
+        return out;
+    }
+
+    /**
+     * PRINTs a value for compiled code.
+     */
+    void print(int value) {
+        out.print(value);
     }
 
     /**
      * runs the currently loaded program
      */
     public void run() {
+        run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the currently loaded program until HALT or until it has used about maxInstructions instructions, whichever
+     * comes first. The budget is charged a basic block at a time, when the jump, call or return that ends the block
+     * runs, so a run stops at most one block past it. A suspended program carries on from where it stopped when run
+     * is called again. Runs with a budget don't use compiled code, which can't be stopped.
+     * @param maxInstructions the budget
+     * @return HALTED, SUSPENDED, or AT_SNAPSHOT if it stopped after a SNAP (see setStopAtSnapshot)
+     */
+    public int run(long maxInstructions) {
+        fuel = maxInstructions;
+        metered = maxInstructions != Long.MAX_VALUE;
+        snapped = false;
+        try {
+            reserveStack(sp, 0, pc);
+            if (costs == null) costs = blockCosts(programMemory);
+            boolean halted;
+            boolean decodedRun = predecode && !debug && profiler == null;
+            try {
+                if (decodedRun) {
+                    if (decoded == null) decoded = decode(programMemory);
+                    halted = runDecoded();
+                } else {
+                    halted = runSwitch();
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // room is only made at calls, so more than STACK_MARGIN operands in one frame run off the stack
+                if (sp < stack.length) throw e;
+                throw new MachineException("Stack overflow at pc " + (decodedRun ? pc : instructionPc) + ": "
+                        + (sp + 1) + " slots needed, the stack has " + stack.length);
+            }
+            return halted ? HALTED : snapped ? AT_SNAPSHOT : SUSPENDED;
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the budget left by the last run(maxInstructions), negative if it went past it
+     */
+    public long fuel() {
+        return fuel;
+    }
+
+    /**
+     * Runs the program with the switch loop until HALT or the end of the budget, printing every instruction and the
+     * stack in debug runs.
+     * @return whether it halted
+     */
+    private boolean runSwitch() {
         done = false;
         while (!done) {
             if (debug) System.out.print(Compiler.INT_TO_INSTRUCTION.get(programMemory[pc]));
+            if (profiler != null) profiler.step(pc, programMemory);
+            instructionPc = pc;     // pc moves to the operands while the instruction runs
+            int cost = costs[pc];
             switch (programMemory[pc]) {
                 case ADD -> {
                     b = pop();
@@ -208,17 +569,31 @@ public class Machine {
                     a = pop();  //get the value to store
                     stack[fp - programMemory[pc] + 1] = a; //store
                 }
+                case STOREI -> {
+                    pc += 1;
+                    a = pop();
+                    b = programMemory[pc];
+                    stack[b < 0 ? fp + b - 2 : fp + b + 1] = a; //store, avoiding the saved data like LOAD
+                }
                 case GSTORE -> {
                     pc += 1;
                     a = pop();
                     globalMem[programMemory[pc]] = a;
                 }
-                case PRINT -> System.out.println(pop());
+                case PRINT -> {
+                    out.print(pop());
+                    if (debug) out.flush();     // keep the output in order with the trace
+                }
                 case POP -> pop();
                 case HALT -> done = true;
                 case CALL -> {
-                    //save the state
-                    push(programMemory[pc + 2]);  //save number of args
+                    MemoCache cache = memo == null ? null : memo[programMemory[pc + 1]];
+                    if (cache != null ? callMemoized(cache) : jit != null && !metered && callCompiled()) break;
+                    if (sp + 3 + programMemory[pc + 3] + STACK_MARGIN >= stack.length) {
+                        reserveStack(sp, 3 + programMemory[pc + 3], pc);
+                    }
+                    //save the state, flagging memoized calls by saving the complement of the number of args
+                    push(cache != null ? ~programMemory[pc + 2] : programMemory[pc + 2]);  //save number of args
                     push(pc + 3); //save the address of the next command -1 (since the loop will add one)
                     push(fp);
 
@@ -232,6 +607,10 @@ public class Machine {
                     fp = pop();     //reset frame pointer
                     pc = pop();     //reset the program counter
                     b = pop();  //get number of function args
+                    if (b < 0) {
+                        b = ~b;
+                        memoResult(a);
+                    }
                     sp -= b;    //discard the function arguments
                     push(a);        //save the return
                 }
@@ -244,12 +623,630 @@ public class Machine {
                     a = pop();
                     push(a % b);
                 }
+                case LOADI -> {
+                    pc += 1;
+                    a = programMemory[pc];
+                    push(stack[a < 0 ? fp + a - 2 : fp + a + 1]);
+                }
+                case GLOADI -> {
+                    pc += 1;
+                    push(globalMem[programMemory[pc]]);
+                }
+                case JMPI -> pc = programMemory[pc + 1] - 1;
+                case JMPTI -> {
+                    a = pop();
+                    pc = a == 1 ? programMemory[pc + 1] - 1 : pc + 1;
+                }
+                case JMPFI -> {
+                    a = pop();
+                    pc = a == 0 ? programMemory[pc + 1] - 1 : pc + 1;
+                }
+                case DUP -> push(stack[sp]);
+                case TCALL -> {
+                    // move the new arguments over the current ones and build the new frame in the same place
+                    int nArgs = programMemory[pc + 2], from = sp - nArgs + 1;
+                    if (nArgs == stack[fp - 2]) {
+                        // the saved nArgs, return address and frame pointer stay where they are
+                        for (int i = 0; i < nArgs; i++) stack[fp - 2 - nArgs + i] = stack[from + i];
+                    } else {
+                        int saved = stack[fp - 2];  // complemented if the current call is memoized
+                        int base = fp - 2 - (saved < 0 ? ~saved : saved);  // the first slot of the current arguments
+                        a = stack[fp - 1];  // the return address
+                        b = stack[fp];      // the caller's frame pointer
+                        for (int i = 0; i < nArgs; i++) stack[base + i] = stack[from + i];
+                        fp = base + nArgs + 2;
+                        stack[fp - 2] = saved < 0 ? ~nArgs : nArgs;    // the result is still the memoized call's
+                        stack[fp - 1] = a;
+                        stack[fp] = b;
+                    }
+                    if (fp + programMemory[pc + 3] + STACK_MARGIN >= stack.length) {
+                        reserveStack(fp, programMemory[pc + 3], pc);
+                    }
+                    sp = fp + programMemory[pc + 3];    // add space for locals
+                    pc = programMemory[pc + 1] - 1;
+                }
+                case SNAP -> snapped = stopAtSnapshot;
+                case NEWARR -> push(heap.allocate(pop(), pc));
+                case ALOAD -> {
+                    b = pop();
+                    a = pop();
+                    push(heap.load(a, b, pc));
+                }
+                case ASTORE -> {
+                    int value = pop();
+                    b = pop();
+                    a = pop();
+                    heap.store(a, b, value, pc);
+                }
+                case ALEN -> push(heap.length(pop(), pc));
+                case NATIVE -> {
+                    pc += 1;
+                    sp = intrinsic(Intrinsics.table(), programMemory[pc], pc - 1).call(stack, sp);
+                }
             }
 
             if (debug) System.out.println(" pc" + pc + " sp" + sp + " fp" + fp + " stack"
                     + Arrays.toString(Arrays.copyOfRange(stack, 0, sp + 1)));
             pc++;
+            if (snapped) return false;
+            if (cost != 0 && (fuel -= cost) < 0 && !done) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param op an instruction code
+     * @return the number of operands that follow the instruction in program memory
+     */
+    public static int operandCount(int op) {
+        return switch (op) {
+            case CONST, STORE, GSTORE, LOADI, GLOADI, JMPI, JMPTI, JMPFI, NATIVE, STOREI -> 1;
+            case CALL, TCALL -> 3;
+            default -> 0;
+        };
+    }
+
+    /**
+     * @param natives the host functions by index
+     * @param index the operand of a NATIVE
+     * @param pc the address of the NATIVE, for the error message
+     * @return the host function
+     */
+    private static Intrinsics.Intrinsic intrinsic(Intrinsics.Intrinsic[] natives, int index, int pc) {
+        if (index < 0 || index >= natives.length) {
+            throw new MachineException("Unknown intrinsic " + index + " at pc " + pc);
+        }
+        return natives[index];
+    }
+
+    /**
+     * Looks up the call at pc in the function's cache. On a hit the arguments are replaced by the result and pc is left
+     * on the last operand of the CALL. On a miss the arguments are saved for RET to record the result.
+     * @return whether the result was found
+     */
+    private boolean callMemoized(MemoCache cache) {
+        int nArgs = programMemory[pc + 2];
+        int e = cache.find(stack, sp - nArgs + 1, nArgs);
+        if (e < 0) {
+            memoMiss(cache, programMemory[pc + 1], stack, sp - nArgs + 1, nArgs);
+            return false;
+        }
+        sp -= nArgs;
+        push(cache.value(e));
+        pc += 3;
+        return true;
+    }
+
+    /**
+     * Saves the arguments of a memoized call that has to run. They are copied because the function may store to them.
+     * The count is saved with them since a TCALL can replace the call's frame with one of a different size.
+     * A cache that hardly ever hits is dropped, so later calls to the function run without it.
+     */
+    private void memoMiss(MemoCache cache, int addr, int[] stack, int from, int nArgs) {
+        if (pendingTop + nArgs + 2 > pending.length) pending = Arrays.copyOf(pending, 2 * (pendingTop + nArgs + 2));
+        System.arraycopy(stack, from, pending, pendingTop, nArgs);
+        pendingTop += nArgs;
+        pending[pendingTop++] = nArgs;
+        pending[pendingTop++] = addr;
+        if (cache.misses() == MEMO_TRIAL && cache.hitRate() < MEMO_MIN_HIT_RATE) memo[addr] = null;
+    }
+
+    /**
+     * Records the result of the most recent memoized call that is still running.
+     */
+    private void memoResult(int result) {
+        int addr = pending[--pendingTop];
+        int nArgs = pending[--pendingTop];
+        pendingTop -= nArgs;
+        MemoCache cache = memo[addr];
+        if (cache != null) cache.put(pending, pendingTop, nArgs, result);
+    }
+
+    /**
+     * @return a line for each memoized function of the loaded program with its hits, misses, evictions and hit rate
+     */
+    public String memoReport() {
+        StringBuilder strB = new StringBuilder();
+        if (memoCaches == null) return strB.toString();
+        for (int i = 0; i < memoCaches.length; i++) {
+            MemoCache cache = memoCaches[i];
+            if (cache == null) continue;
+            strB.append(String.format("%s: %d hits, %d misses, %d evictions, %d cached, %.1f%% hit rate%s%n",
+                    program.functionNames[i], cache.hits(), cache.misses(), cache.evictions(), cache.size(),
+                    100 * cache.hitRate(), memo[program.functionAddrs[i]] == null ? " (dropped)" : ""));
         }
+        return strB.toString();
+    }
+
+    /**
+     * Makes the call at pc with compiled code if the function has been compiled. Leaves pc on the last operand of the
+     * CALL.
+     * @return whether the call was made
+     */
+    private boolean callCompiled() {
+        int nArgs = programMemory[pc + 2];
+        JitCompiler.Compiled c = jit.lookup(programMemory[pc + 1], nArgs, programMemory[pc + 3]);
+        if (c == null) return false;
+        a = invokeCompiled(c, globalMem, stack, sp - nArgs + 1);
+        sp -= nArgs;
+        push(a);
+        pc += 3;
+        return true;
+    }
+
+    /**
+     * Runs a compiled function. The stack from its arguments up is free while it runs, for callInterpreted.
+     */
+    private int invokeCompiled(JitCompiler.Compiled c, int[] globals, int[] stack, int base) {
+        compiledBase = base;
+        return c.code.invoke(c.index, this, globals, stack, base);
+    }
+
+    /**
+     * Runs a call from compiled code nested too deeply to go on on the Java stack with the switch loop, so deep
+     * recursion uses the machine's stack as it does without the JIT. The frame is built where the arguments of the
+     * outermost compiled function were and returns to a HALT, which ends the nested loop. Nothing is compiled or
+     * called compiled meanwhile.
+     * @param addr the address of the function
+     * @param args the arguments in the order CALL pushes them
+     * @param nLocals the number of locals of the function
+     * @return the return value
+     */
+    int callInterpreted(int addr, int[] args, int nLocals) {
+        int savedPc = pc, savedSp = sp, savedFp = fp;
+        JitCompiler jit = this.jit;
+        sp = compiledBase - 1;
+        reserveStack(sp, args.length + 3 + nLocals, addr);
+        for (int arg : args) push(arg);
+        push(args.length);
+        push(jit.halt() - 1);   // the loop adds one after RET
+        push(fp);
+        fp = sp;
+        sp += nLocals;
+        pc = addr;
+        this.jit = null;
+        try {
+            runSwitch();
+        } finally {
+            this.jit = jit;
+        }
+        int result = stack[sp];
+        pc = savedPc;
+        sp = savedSp;
+        fp = savedFp;
+        done = false;
+        return result;
+    }
+
+    /**
+     * Decodes a program for runDecoded. Every address gets an entry (not just instruction boundaries) so a jump
+     * behaves exactly as in the switch loop wherever it lands. Operands are resolved ahead of time and the sequences
+     * the Parser emits for variable reads and branches (CONST n LOAD, CONST n GLOAD, CONST addr JMP/JMPT/JMPF) are
+     * fused into single instructions.
+     * @param program the program to decode
+     * @return pairs of (opcode, operand) for every address of program
+     */
+    static int[] decode(int[] program) {
+        int[] code = new int[2 * program.length];
+        for (int i = 0; i < program.length; i++) {
+            int op = program[i];
+            // codes that aren't instructions are skipped as in the switch loop, even those of the fused instructions
+            if (!Compiler.INT_TO_INSTRUCTION.containsKey(op)) op = 0;
+            int nOperands = operandCount(op);
+            int arg = 0;
+            if (i + nOperands >= program.length) {
+                op = TRUNCATED;
+            } else if (op == CONST && i + 2 < program.length && program[i + 2] >= JMP && program[i + 2] <= JMPF) {
+                op = program[i + 2] - JMP + JMP_K;
+                arg = program[i + 1];
+            } else if (op == CONST && i + 2 < program.length && program[i + 2] == LOAD) {
+                op = LOAD_K;
+                arg = program[i + 1] < 0 ? program[i + 1] - 2 : program[i + 1] + 1;  //avoid the saved data
+            } else if (op == CONST && i + 2 < program.length && program[i + 2] == GLOAD) {
+                op = GLOAD_K;
+                arg = program[i + 1];
+            } else if (op == STORE) {
+                arg = 1 - program[i + 1];
+            } else if (op == STOREI || op == LOADI) {
+                arg = program[i + 1] < 0 ? program[i + 1] - 2 : program[i + 1] + 1;
+            } else if (nOperands > 0) {
+                arg = program[i + 1];
+            }
+            code[2 * i] = op;
+            code[2 * i + 1] = arg;
+        }
+        return code;
+    }
+
+    /**
+     * Counts the instructions of each basic block for metering: every jump, call, return or HALT gets the number of
+     * instructions since the last one, including itself, and the other instructions get 0.
+     * @param program the program
+     * @return the cost of each address of program
+     */
+    static int[] blockCosts(int[] program) {
+        int[] costs = new int[program.length];
+        int count = 0;
+        for (int i = 0; i < program.length; i += 1 + operandCount(program[i])) {
+            count++;
+            switch (program[i]) {
+                case JMP, JMPT, JMPF, JMPI, JMPTI, JMPFI, CALL, TCALL, RET, HALT -> {
+                    costs[i] = count;
+                    count = 0;
+                }
+            }
+        }
+        return costs;
+    }
+
+    /**
+     * Runs the pre-decoded program until HALT or the end of the budget. This gives the same results as the switch loop
+     * but keeps the registers in local variables while running and has no debug output.
+     * @return whether it halted
+     */
+    private boolean runDecoded() {
+        boolean sized = sizeStack();    // calls needn't check for room
+        int[] code = decoded, program = programMemory, stack = this.stack, globals = globalMem, costs = this.costs;
+        MemoCache[] memo = this.memo;
+        OutputSink out = this.out;
+        ArrayHeap heap = this.heap;
+        Intrinsics.Intrinsic[] natives = Intrinsics.table();
+        JitCompiler jit = metered ? null : this.jit;    // compiled code can't be stopped
+        int pc = this.pc, sp = this.sp, fp = this.fp;
+        long fuel = this.fuel;
+        try {
+            while (true) {
+                int arg = code[2 * pc + 1];
+                switch (code[2 * pc]) {
+                    case ADD -> {
+                        sp--;
+                        stack[sp] = stack[sp] + stack[sp + 1];
+                        pc++;
+                    }
+                    case SUB -> {
+                        sp--;
+                        stack[sp] = stack[sp] - stack[sp + 1];
+                        pc++;
+                    }
+                    case MUL -> {
+                        sp--;
+                        stack[sp] = stack[sp] * stack[sp + 1];
+                        pc++;
+                    }
+                    case DIV -> {
+                        sp--;
+                        stack[sp] = stack[sp] / stack[sp + 1];
+                        pc++;
+                    }
+                    case LT -> {
+                        sp--;
+                        stack[sp] = stack[sp] < stack[sp + 1] ? 1 : 0;
+                        pc++;
+                    }
+                    case GT -> {
+                        sp--;
+                        stack[sp] = stack[sp] > stack[sp + 1] ? 1 : 0;
+                        pc++;
+                    }
+                    case LEQ -> {
+                        sp--;
+                        stack[sp] = stack[sp] <= stack[sp + 1] ? 1 : 0;
+                        pc++;
+                    }
+                    case GEQ -> {
+                        sp--;
+                        stack[sp] = stack[sp] >= stack[sp + 1] ? 1 : 0;
+                        pc++;
+                    }
+                    case EQ -> {
+                        sp--;
+                        stack[sp] = stack[sp] == stack[sp + 1] ? 1 : 0;
+                        pc++;
+                    }
+                    case AND -> {
+                        sp--;
+                        stack[sp] = stack[sp] == 1 && stack[sp + 1] == 1 ? 1 : 0;
+                        pc++;
+                    }
+                    case OR -> {
+                        sp--;
+                        stack[sp] = stack[sp] == 1 || stack[sp + 1] == 1 ? 1 : 0;
+                        pc++;
+                    }
+                    case NOT -> {
+                        int a = stack[sp];
+                        stack[sp] = a == 1 ? 0 : a == 0 ? 1 : a;
+                        pc++;
+                    }
+                    case JMP -> {
+                        fuel -= costs[pc];
+                        pc = stack[sp--];
+                        if (fuel < 0) return false;
+                    }
+                    case JMPT -> {
+                        fuel -= costs[pc];
+                        sp -= 2;
+                        pc = stack[sp + 1] == 1 ? stack[sp + 2] : pc + 1;
+                        if (fuel < 0) return false;
+                    }
+                    case JMPF -> {
+                        fuel -= costs[pc];
+                        sp -= 2;
+                        pc = stack[sp + 1] == 0 ? stack[sp + 2] : pc + 1;
+                        if (fuel < 0) return false;
+                    }
+                    case CONST -> {
+                        stack[++sp] = arg;
+                        pc += 2;
+                    }
+                    case LOAD -> {
+                        int a = stack[sp];
+                        stack[sp] = stack[a < 0 ? fp + a - 2 : fp + a + 1];
+                        pc++;
+                    }
+                    case GLOAD -> {
+                        stack[sp] = globals[stack[sp]];
+                        pc++;
+                    }
+                    case STORE, STOREI -> {
+                        stack[fp + arg] = stack[sp--];
+                        pc += 2;
+                    }
+                    case GSTORE -> {
+                        globals[arg] = stack[sp--];
+                        pc += 2;
+                    }
+                    case PRINT -> {
+                        out.print(stack[sp--]);
+                        pc++;
+                    }
+                    case POP -> {
+                        sp--;
+                        pc++;
+                    }
+                    case HALT -> {
+                        fuel -= costs[pc];
+                        pc++;
+                        return true;
+                    }
+                    case CALL -> {
+                        fuel -= costs[pc];
+                        int nArgs = program[pc + 2];
+                        MemoCache cache = memo == null ? null : memo[arg];
+                        if (cache != null) {
+                            int e = cache.find(stack, sp - nArgs + 1, nArgs);
+                            if (e >= 0) {
+                                sp -= nArgs - 1;
+                                stack[sp] = cache.value(e);
+                                pc += 4;
+                                if (fuel < 0) return false;
+                                break;
+                            }
+                            memoMiss(cache, arg, stack, sp - nArgs + 1, nArgs);
+                            nArgs = ~nArgs;     // flags the frame for RET
+                        } else if (jit != null) {
+                            JitCompiler.Compiled c = jit.lookup(arg, nArgs, program[pc + 3]);
+                            if (c != null) {
+                                sp -= program[pc + 2] - 1;
+                                int result = invokeCompiled(c, globals, stack, sp);
+                                stack = this.stack;     // a call run by callInterpreted may have grown it
+                                stack[sp] = result;
+                                pc += 4;
+                                if (fuel < 0) return false;
+                                break;
+                            }
+                        }
+                        if (!sized && sp + 3 + program[pc + 3] + STACK_MARGIN >= stack.length) {
+                            stack = reserveStack(sp, 3 + program[pc + 3], pc);
+                        }
+                        stack[++sp] = nArgs;  //save number of args
+                        stack[++sp] = pc + 3;   //save the same return address as the switch loop
+                        stack[++sp] = fp;
+                        fp = sp;
+                        sp += program[pc + 3];
+                        pc = arg;
+                        if (fuel < 0) return false;
+                    }
+                    case RET -> {
+                        fuel -= costs[pc];
+                        int a = stack[sp];
+                        sp = fp;
+                        fp = stack[sp--];
+                        pc = stack[sp--] + 1;
+                        int nArgs = stack[sp];
+                        if (nArgs < 0) {
+                            nArgs = ~nArgs;
+                            memoResult(a);
+                        }
+                        sp -= nArgs + 1;
+                        stack[++sp] = a;
+                        if (fuel < 0) return false;
+                    }
+                    case NEG -> {
+                        stack[sp] = -stack[sp];
+                        pc++;
+                    }
+                    case MOD -> {
+                        sp--;
+                        stack[sp] = stack[sp] % stack[sp + 1];
+                        pc++;
+                    }
+                    case LOAD_K -> {
+                        stack[++sp] = stack[fp + arg];
+                        pc += 3;
+                    }
+                    case GLOAD_K -> {
+                        stack[++sp] = globals[arg];
+                        pc += 3;
+                    }
+                    case LOADI -> {
+                        stack[++sp] = stack[fp + arg];
+                        pc += 2;
+                    }
+                    case GLOADI -> {
+                        stack[++sp] = globals[arg];
+                        pc += 2;
+                    }
+                    case JMPI -> {
+                        fuel -= costs[pc];
+                        pc = arg;
+                        if (fuel < 0) return false;
+                    }
+                    case JMPTI -> {
+                        fuel -= costs[pc];
+                        pc = stack[sp--] == 1 ? arg : pc + 2;
+                        if (fuel < 0) return false;
+                    }
+                    case JMPFI -> {
+                        fuel -= costs[pc];
+                        pc = stack[sp--] == 0 ? arg : pc + 2;
+                        if (fuel < 0) return false;
+                    }
+                    case DUP -> {
+                        stack[sp + 1] = stack[sp];
+                        sp++;
+                        pc++;
+                    }
+                    case TCALL -> {
+                        fuel -= costs[pc];
+                        int nArgs = program[pc + 2], from = sp - nArgs + 1;
+                        if (nArgs == stack[fp - 2]) {
+                            for (int i = 0; i < nArgs; i++) stack[fp - 2 - nArgs + i] = stack[from + i];
+                        } else {
+                            int saved = stack[fp - 2], ret = stack[fp - 1], callerFp = stack[fp];
+                            int base = fp - 2 - (saved < 0 ? ~saved : saved);
+                            for (int i = 0; i < nArgs; i++) stack[base + i] = stack[from + i];
+                            fp = base + nArgs + 2;
+                            stack[fp - 2] = saved < 0 ? ~nArgs : nArgs;
+                            stack[fp - 1] = ret;
+                            stack[fp] = callerFp;
+                        }
+                        if (!sized && fp + program[pc + 3] + STACK_MARGIN >= stack.length) {
+                            stack = reserveStack(fp, program[pc + 3], pc);
+                        }
+                        sp = fp + program[pc + 3];
+                        pc = arg;
+                        if (fuel < 0) return false;
+                    }
+                    // the CONST is counted with the jump after it
+                    case JMP_K -> {
+                        fuel -= costs[pc + 2];
+                        pc = arg;
+                        if (fuel < 0) return false;
+                    }
+                    case JMPT_K -> {
+                        fuel -= costs[pc + 2];
+                        pc = stack[sp--] == 1 ? arg : pc + 3;
+                        if (fuel < 0) return false;
+                    }
+                    case JMPF_K -> {
+                        fuel -= costs[pc + 2];
+                        pc = stack[sp--] == 0 ? arg : pc + 3;
+                        if (fuel < 0) return false;
+                    }
+                    case SNAP -> {
+                        pc++;
+                        if (stopAtSnapshot) {
+                            snapped = true;
+                            return false;
+                        }
+                    }
+                    case NEWARR -> {
+                        stack[sp] = heap.allocate(stack[sp], pc);
+                        pc++;
+                    }
+                    case ALOAD -> {
+                        sp--;
+                        stack[sp] = heap.load(stack[sp], stack[sp + 1], pc);
+                        pc++;
+                    }
+                    case ASTORE -> {
+                        sp -= 3;
+                        heap.store(stack[sp + 1], stack[sp + 2], stack[sp + 3], pc);
+                        pc++;
+                    }
+                    case ALEN -> {
+                        stack[sp] = heap.length(stack[sp], pc);
+                        pc++;
+                    }
+                    case NATIVE -> {
+                        sp = intrinsic(natives, arg, pc).call(stack, sp);
+                        pc += 2;
+                    }
+                    case TRUNCATED -> throw new ArrayIndexOutOfBoundsException("Index " + program.length
+                            + " out of bounds for length " + program.length);
+                    default -> pc++;    // unknown codes are skipped, as in the switch loop
+                }
+            }
+        } finally {
+            this.pc = pc;
+            this.sp = sp;
+            this.fp = fp;
+            this.fuel = fuel;
+        }
+    }
+
+    /**
+     * Sizes the stack for the rest of the run if the loaded program was verified (see Verifier) and doesn't recurse, so
+     * the pre-decoded engine can call functions without checking for room. The stack is sized when a run starts at the
+     * entry point with an empty stack, to the most the program can use from there, and stays sized until another
+     * program is loaded or a snapshot restored: runs after a reset, or carrying on a suspended run, can't need more.
+     * @return whether the stack is sized
+     */
+    private boolean sizeStack() {
+        if (stackSized) return true;
+        if (program == null || pc != program.entryPoint || sp != -1 || fp != 0) return false;
+        Verifier.Result verification = program.verification();
+        if (!verification.verified() || verification.stackNeed < 0 || verification.stackNeed > stackLimit) return false;
+        if (verification.stackNeed > stack.length) stack = Arrays.copyOf(stack, verification.stackNeed);
+        return stackSized = true;
+    }
+
+    /**
+     * Makes sure the stack has room for a new frame, growing it geometrically up to the limit. This is checked once per
+     * CALL (and when a run starts) rather than on every push: STACK_MARGIN free slots are kept above the frame for the
+     * operands of its expressions.
+     * @param sp the current stack pointer
+     * @param frame the number of slots the new frame needs
+     * @param pc the address of the instruction that needs the room, for the error message
+     * @return the stack, which is a new array if it grew
+     */
+    private int[] reserveStack(int sp, int frame, int pc) {
+        long needed = (long) sp + 1 + frame + STACK_MARGIN;
+        if (needed > stack.length) {
+            if (needed > stackLimit) throw new MachineException("Stack overflow at pc " + pc + ": " + needed
+                    + " slots needed, the limit is " + stackLimit);
+            stack = Arrays.copyOf(stack, (int) Math.min(stackLimit, Math.max(needed, 2L * stack.length)));
+        }
+        return stack;
+    }
+
+    /**
+     * Grows global memory to hold at least count globals.
+     * @param count the number of globals the program uses
+     */
+    private void reserveGlobals(int count) {
+        if (count > globalMem.length) globalMem = Arrays.copyOf(globalMem, count);
     }
 
     /**
@@ -274,7 +1271,16 @@ public class Machine {
      * Runs a Machine.
      * @param args test (runs a simple test) || load filepath (loads and runs the program at filpath)
      *             || run program (runs a program of ints seperated by commas)
-     *             || runSrc filepath (compiles and runs a bytecode file)
+     *             || runSrc filepath [-dump] [-cache] (compiles and runs a source file, -dump writes the intermediate
+     *             files, -cache reuses the code of unchanged functions from the last compiles, kept in .vcache)
+     *             || bench filepath [runs] (times a compiled program on each engine)
+     *             || profile filepath [outPrefix] (runs a compiled program and prints its profile as JSON, or
+     *             writes outPrefix.json and the folded stacks to outPrefix.folded)
+     *             || memo filepath [memoSize] (runs a compiled program and prints how often each pure function's
+     *             results were reused)
+     *             || snapshot filepath out.vsnap (runs a compiled program up to its first snapshot statement and
+     *             writes its state to out.vsnap)
+     *             || resume filepath.vsnap (restores a snapshot and runs the rest of its program)
      */
     public static void main(String[] args) {
         boolean debug = true;
@@ -293,18 +1299,16 @@ public class Machine {
                 m.run();
             }
             case "runSrc"-> {
-                Lexer lex = new Lexer();
-                try {
-                    lex.tokenize(args[1]);
-                } catch (UnexpectedTokenException e) {
+                // compile in memory, writing the .vlex, .vbyt and .vcomp files only when asked to
+                String dumpPath = Arrays.asList(args).contains("-dump")
+                        ? args[1].substring(0, args[1].lastIndexOf('.')) : null;
+                CompileCache cache = Arrays.asList(args).contains("-cache") ? new CompileCache() : null;
+                try (Reader source = new FileReader(args[1])) {
+                    m.load(Compiler.compileSource(source, dumpPath, cache));
+                } catch (IOException | UnexpectedTokenException e) {
                     System.err.println(e);
                     return;
                 }
-                String fname = args[1].substring(0, args[1].lastIndexOf('.'));
-                Parser.parse(fname + ".vlex");
-                Compiler.compile(fname + ".vbyt",
-                        fname + ".vcomp");
-                m.load(fname + ".vcomp");
                 m.run();
             }
             case "runByt"-> {
@@ -314,7 +1318,91 @@ public class Machine {
                 m.load(fname + ".vcomp");
                 m.run();
             }
+            case "bench"-> benchmark(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 20);
+            case "profile"-> {
+                m = new Machine(false);
+                Program program;
+                try {
+                    program = Program.read(args[1]);
+                } catch (IOException e) {
+                    System.err.println(e);
+                    return;
+                }
+                Profiler profiler = new Profiler(program);
+                m.setProfiler(profiler);
+                m.load(program);
+                m.run();
+                if (args.length < 3) {
+                    System.out.print(profiler.json());
+                    return;
+                }
+                try (FileWriter json = new FileWriter(args[2] + ".json");
+                     FileWriter folded = new FileWriter(args[2] + ".folded")) {
+                    json.write(profiler.json());
+                    folded.write(profiler.folded());
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+            case "memo"-> {
+                m = new Machine(false, true, 0, DEFAULT_STACK_SIZE, DEFAULT_STACK_LIMIT, DEFAULT_GLOBAL_SIZE,
+                        args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MEMO_SIZE);
+                m.load(args[1]);
+                m.run();
+                System.out.print(m.memoReport());
+            }
+            case "snapshot"-> {
+                m = new Machine(false, true);
+                m.setStopAtSnapshot(true);
+                m.load(args[1]);
+                if (m.run(Long.MAX_VALUE) != AT_SNAPSHOT) {
+                    System.err.println(args[1] + " halted without reaching a snapshot statement");
+                    return;
+                }
+                try {
+                    m.snapshot().write(args[2]);
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+            case "resume"-> {
+                m = new Machine(false, true, JitCompiler.DEFAULT_THRESHOLD);
+                try {
+                    m.restore(Snapshot.read(args[1]));
+                } catch (IOException e) {
+                    System.err.println(e);
+                    return;
+                }
+                m.run();
+            }
+        }
+    }
+
+    /**
+     * Times a compiled program on the switch loop, on the pre-decoded engine and on the pre-decoded engine with hot
+     * functions compiled to JVM bytecode. Output from PRINT is discarded while timing.
+     * @param path the filepath of a .vcomp program
+     * @param runs the number of timed runs of each engine (after the same number of warm-up runs)
+     */
+    private static void benchmark(String path, int runs) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long[] best = new long[3];
+        for (int engine = 0; engine < 3; engine++) {
+            best[engine] = Long.MAX_VALUE;
+            for (int i = 0; i < 2 * runs; i++) {
+                Machine m = new Machine(false, engine > 0, engine == 2 ? JitCompiler.DEFAULT_THRESHOLD : 0);
+                m.load(path);
+                long start = System.nanoTime();
+                m.run();
+                long time = System.nanoTime() - start;
+                if (i >= runs) best[engine] = Math.min(best[engine], time);
+            }
         }
+        System.setOut(out);
+        System.out.printf("switch:     %.3f ms%n", best[0] / 1e6);
+        System.out.printf("predecoded: %.3f ms (%.2fx)%n", best[1] / 1e6, (double) best[0] / best[1]);
+        System.out.printf("jit:        %.3f ms (%.2fx)%n", best[2] / 1e6, (double) best[0] / best[2]);
     }
 
 }
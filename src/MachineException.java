@@ -0,0 +1,8 @@
+/**
+ * Thrown when a running program fails inside the Machine, e.g. when its stack grows past the limit.
+ */
+public class MachineException extends RuntimeException {
+    public MachineException(String errorMessage) {
+        super(errorMessage);
+    }
+}
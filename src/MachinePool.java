@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The MachinePool class runs one Program for many callers at once, e.g. the same script for every request a service
+ * gets. Every Machine shares the Program (and its pre-decoded code) and only holds its own registers, stack and
+ * globals, and a Machine that has finished a run is reset and given to the next one instead of being created and
+ * loaded again. Runs submitted to the pool go to virtual threads when the JVM has them (Java 21 and later) and to a
+ * cached thread pool otherwise.
+ */
+public class MachinePool implements AutoCloseable {
+    public static final int DEFAULT_MAX_IDLE = 256;
+
+    private final Program program;
+    private final Supplier<Machine> factory;
+    private final int maxIdle;  // the most Machines kept between runs
+    private final ConcurrentLinkedQueue<Pooled> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final ExecutorService executor;
+
+    /**
+     * A pool of pre-decoded Machines.
+     * @param program the program to run
+     */
+    public MachinePool(Program program) {
+        this(program, () -> new Machine(false, true), DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param program the program to run
+     * @param factory makes a new Machine when none is idle. The pool loads the program into it.
+     * @param maxIdle the most Machines kept between runs. Machines returned when that many are idle are dropped.
+     */
+    public MachinePool(Program program, Supplier<Machine> factory, int maxIdle) {
+        this.program = program;
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        executor = newExecutor();
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task, or a cached thread pool before Java 21
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            // looked up by name so the project still builds for older Java versions
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "machine-pool");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Runs the program on the calling thread.
+     * @return the values it printed
+     */
+    public int[] run() {
+        return run(m -> {
+        });
+    }
+
+    /**
+     * Runs the program on the calling thread.
+     * @param setup called with the Machine before it runs, e.g. to set globals with the run's input
+     * @return the values it printed
+     */
+    public int[] run(Consumer<Machine> setup) {
+        Pooled pooled = borrow();
+        Machine m = pooled.machine;
+        CapturedOutput out = new CapturedOutput();
+        try {
+            m.setOutput(out);
+            setup.accept(m);
+            m.run();
+            return out.values();
+        } finally {
+            giveBack(pooled);
+        }
+    }
+
+    /**
+     * Runs the program on one of the pool's threads.
+     * @param setup called with the Machine before it runs
+     * @return the values it printed, or the exception it failed with
+     */
+    public CompletableFuture<int[]> submit(Consumer<Machine> setup) {
+        return CompletableFuture.supplyAsync(() -> run(setup), executor);
+    }
+
+    private Pooled borrow() {
+        Pooled pooled = idle.poll();
+        if (pooled != null) {
+            idleCount.decrementAndGet();
+            return pooled;
+        }
+        Machine m = factory.get();
+        m.load(program);
+        return new Pooled(m);
+    }
+
+    /**
+     * Resets a Machine and puts back the settings a run may have changed, so the next run starts as the factory made
+     * it.
+     */
+    private void giveBack(Pooled pooled) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        Machine m = pooled.machine;
+        if (m.heap().limit() != pooled.heapLimit) m.setHeapLimit(pooled.heapLimit);
+        m.setStopAtSnapshot(pooled.stopAtSnapshot);
+        if (m.profiler() != pooled.profiler) m.setProfiler(pooled.profiler);
+        m.setOutput(pooled.out);
+        m.reset();
+        idle.offer(pooled);
+    }
+
+    /**
+     * A Machine of the pool with the settings the factory gave it.
+     */
+    private static final class Pooled {
+        final Machine machine;
+        final int heapLimit;
+        final boolean stopAtSnapshot;
+        final Profiler profiler;
+        final OutputSink out;
+
+        Pooled(Machine machine) {
+            this.machine = machine;
+            heapLimit = machine.heap().limit();
+            stopAtSnapshot = machine.stopsAtSnapshot();
+            profiler = machine.profiler();
+            out = machine.output();
+        }
+    }
+
+    /**
+     * Stops the pool's threads once the runs already submitted have finished.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Times running a compiled program many times concurrently, with a new Machine that copies and decodes the program
+     * for every run and with a MachinePool.
+     * @param args filepath [runs] [concurrency]
+     *             || check filepath (runs the program twice on the same Machine, changing its settings in the first
+     *             run, and exits with status 1 if the second run doesn't start with the factory's settings)
+     */
+    public static void main(String[] args) throws Exception {
+        boolean check = args[0].equals("check");
+        Program program;
+        try {
+            program = Program.read(args[check ? 1 : 0]);
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        }
+        if (check) {
+            if (!check(program)) System.exit(1);
+            return;
+        }
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        try (MachinePool pool = new MachinePool(program)) {
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                runBatches(runs, concurrency, () -> CompletableFuture.supplyAsync(() -> {
+                    Machine m = new Machine(false, true);
+                    CapturedOutput out = new CapturedOutput();
+                    m.setOutput(out);
+                    m.load(program.code);   // copied and decoded for every run
+                    m.run();
+                    return out.values();
+                }, pool.executor));
+                long fresh = System.nanoTime() - start;
+                start = System.nanoTime();
+                runBatches(runs, concurrency, () -> pool.submit(m -> {
+                }));
+                long pooled = System.nanoTime() - start;
+                System.out.printf("%d runs: new machines %.1f ms, pool %.1f ms (%.2fx)%n", runs, fresh / 1e6,
+                        pooled / 1e6, (double) fresh / pooled);
+            }
+        }
+    }
+
+    /**
+     * Borrows a Machine twice from a pool that keeps one. The first run changes every per-run setting; the second must
+     * get the same Machine back with the factory's settings and print what a run on a new Machine prints.
+     * @return whether the second run started as the factory made the Machine
+     */
+    private static boolean check(Program program) {
+        AtomicInteger made = new AtomicInteger();
+        int[] expected;
+        try (MachinePool fresh = new MachinePool(program)) {
+            expected = fresh.run();
+        }
+        try (MachinePool pool = new MachinePool(program, () -> {
+            made.incrementAndGet();
+            return new Machine(false, true);
+        }, 1)) {
+            try {
+                pool.run(m -> {
+                    m.setHeapLimit(1);
+                    m.setStopAtSnapshot(true);
+                    m.setProfiler(new Profiler(program));
+                    m.setOutput(new CapturedOutput());
+                });
+            } catch (MachineException e) {
+                // a program that allocates runs out of heap, which doesn't matter here
+            }
+            ArrayList<String> leaked = new ArrayList<>();
+            int[] second = pool.run(m -> {
+                if (m.heap().limit() != ArrayHeap.DEFAULT_LIMIT) leaked.add("heap limit " + m.heap().limit());
+                if (m.stopsAtSnapshot()) leaked.add("stop at snapshot");
+                if (m.profiler() != null) leaked.add("profiler");
+            });
+            if (made.get() != 1) leaked.add(made.get() + " machines made");
+            if (!Arrays.equals(second, expected)) leaked.add("printed " + Arrays.toString(second) + " rather than "
+                    + Arrays.toString(expected));
+            System.out.println(leaked.isEmpty() ? "ok" : "leaked: " + String.join(", ", leaked));
+            return leaked.isEmpty();
+        }
+    }
+
+    /**
+     * Starts runs in batches of concurrency and waits for each batch.
+     */
+    private static void runBatches(int runs, int concurrency, Supplier<CompletableFuture<int[]>> start) {
+        ArrayList<CompletableFuture<int[]>> batch = new ArrayList<>();
+        for (int i = 0; i < runs; i += concurrency) {
+            batch.clear();
+            for (int j = i; j < Math.min(runs, i + concurrency); j++) batch.add(start.get());
+            CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+}
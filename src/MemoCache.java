@@ -0,0 +1,167 @@
+import java.util.Arrays;
+
+/**
+ * The MemoCache class remembers the results of one pure function for the Machine. Keys are the function's int
+ * arguments, stored inline in an int array, and the results are ints, so a lookup allocates nothing. The cache holds at
+ * most a fixed number of entries and evicts the least recently used one when it is full.
+ */
+public class MemoCache {
+    private final int limit;
+    private int nArgs = -1;     // the key width, fixed by the first lookup
+    private int[] keys;         // nArgs ints for every entry
+    private final int[] values;
+    private final int[] buckets;    // the first entry of each hash chain, -1 if none
+    private final int[] chain;      // the next entry in the same hash chain
+    private final int[] newer, older;   // the recency list, -1 at its ends
+    private int newest = -1, oldest = -1;
+    private int size = 0;
+    private long hits, misses, evictions;
+
+    /**
+     * @param limit the most results to keep (at least 1)
+     */
+    public MemoCache(int limit) {
+        this.limit = Math.max(limit, 1);
+        values = new int[this.limit];
+        chain = new int[this.limit];
+        newer = new int[this.limit];
+        older = new int[this.limit];
+        buckets = new int[Integer.highestOneBit(this.limit * 2 - 1) * 2];
+        Arrays.fill(buckets, -1);
+    }
+
+    /**
+     * Looks up the result for the arguments stack[from, from + nArgs).
+     * @return the entry holding the result (read it with value) or -1 if there is none
+     */
+    public int find(int[] stack, int from, int nArgs) {
+        if (this.nArgs != nArgs) {
+            if (this.nArgs >= 0) {
+                misses++;   // called with a different number of arguments, which is never cached
+                return -1;
+            }
+            this.nArgs = nArgs;
+            keys = new int[limit * nArgs];
+        }
+        for (int e = buckets[hash(stack, from)]; e >= 0; e = chain[e]) {
+            if (matches(e, stack, from)) {
+                hits++;
+                touch(e);
+                return e;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    /**
+     * @param entry an entry returned by find
+     * @return its result
+     */
+    public int value(int entry) {
+        return values[entry];
+    }
+
+    /**
+     * Remembers a result, evicting the least recently used one if the cache is full.
+     * @param args holds the arguments at [from, from + nArgs)
+     * @param value the result
+     */
+    public void put(int[] args, int from, int nArgs, int value) {
+        if (this.nArgs != nArgs) return;
+        int bucket = hash(args, from);
+        for (int e = buckets[bucket]; e >= 0; e = chain[e]) {
+            if (matches(e, args, from)) {   // computed again by a call that was still running
+                values[e] = value;
+                touch(e);
+                return;
+            }
+        }
+        int e;
+        if (size < limit) {
+            e = size++;
+        } else {
+            e = oldest;
+            unlink(e);
+            unchain(e);
+            evictions++;
+        }
+        System.arraycopy(args, from, keys, e * nArgs, nArgs);
+        values[e] = value;
+        chain[e] = buckets[bucket];
+        buckets[bucket] = e;
+        pushNewest(e);
+    }
+
+    private int hash(int[] args, int from) {
+        int h = 0;
+        for (int i = 0; i < nArgs; i++) h = 31 * h + args[from + i];
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (buckets.length - 1);
+    }
+
+    private boolean matches(int e, int[] args, int from) {
+        for (int i = 0; i < nArgs; i++) {
+            if (keys[e * nArgs + i] != args[from + i]) return false;
+        }
+        return true;
+    }
+
+    private void touch(int e) {
+        if (e == newest) return;
+        unlink(e);
+        pushNewest(e);
+    }
+
+    private void pushNewest(int e) {
+        older[e] = newest;
+        newer[e] = -1;
+        if (newest >= 0) newer[newest] = e;
+        newest = e;
+        if (oldest < 0) oldest = e;
+    }
+
+    private void unlink(int e) {
+        if (older[e] >= 0) newer[older[e]] = newer[e];
+        else oldest = newer[e];
+        if (newer[e] >= 0) older[newer[e]] = older[e];
+        else newest = older[e];
+    }
+
+    private void unchain(int e) {
+        int bucket = hash(keys, e * nArgs);
+        if (buckets[bucket] == e) {
+            buckets[bucket] = chain[e];
+            return;
+        }
+        int p = buckets[bucket];
+        while (chain[p] != e) p = chain[p];
+        chain[p] = chain[e];
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of results held
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the fraction of lookups that found a result, 0 if there were none
+     */
+    public double hitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.function.IntConsumer;
+
+/**
+ * An OutputSink receives the values a program PRINTs. The Machine flushes it when a run ends, whether at HALT or
+ * because of an exception.
+ */
+public interface OutputSink {
+    /**
+     * @param value a printed value
+     */
+    void print(int value);
+
+    /**
+     * Writes out anything held back.
+     */
+    default void flush() {
+    }
+
+    /**
+     * @param consumer called with every printed value
+     * @return a sink that hands the values to consumer
+     */
+    static OutputSink of(IntConsumer consumer) {
+        return consumer::accept;
+    }
+}
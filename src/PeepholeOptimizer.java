@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * The PeepholeOptimizer class rewrites a compiled program's instructions. It works on the final int[] code, so it
+ * improves hand-written .vbyt files as well as the Parser's output. The rules are:
+ * <ul>
+ *     <li>immediate operands: CONST n LOAD, CONST n GLOAD and CONST addr JMP/JMPT/JMPF become LOADI, GLOADI and
+ *     JMPI/JMPTI/JMPFI</li>
+ *     <li>push-pop: a CONST, LOADI, GLOADI or DUP followed by POP is removed</li>
+ *     <li>store-load: STOREI n LOADI n becomes DUP STOREI n (GSTORE likewise) and LOADI n STOREI n is removed</li>
+ *     <li>jump threading: a jump to a JMPI goes straight to the JMPI's target, and a jump to the next instruction is
+ *     removed (a conditional one becomes POP)</li>
+ *     <li>dead code: instructions that can't be reached from the entry point or a function (e.g. after HALT, RET,
+ *     TCALL or JMPI) are removed</li>
+ * </ul>
+ * The instructions are kept as a list with jumps pointing at the instructions they target, so the addresses are only
+ * worked out again when the code is written. Programs with jumps to computed addresses (a JMP not right after the
+ * CONST that pushes its address) or jumps into the middle of an instruction are returned unchanged.
+ */
+public class PeepholeOptimizer {
+
+    // the rules, as indexes into RULE_NAMES and the counts
+    public static final int IMMEDIATE = 0, PUSH_POP = 1, STORE_LOAD = 2, JUMP_THREADING = 3, DEAD_CODE = 4;
+    public static final String[] RULE_NAMES = {"immediate operands", "push-pop", "store-load", "jump threading",
+            "dead code"};
+
+    private final int[] applied = new int[RULE_NAMES.length];   // the number of times each rule was applied
+    private final int[] removed = new int[RULE_NAMES.length];   // the number of instructions each rule removed
+    private int wordsBefore, wordsAfter;
+    private String skipped;     // why the last program was returned unchanged, null if it was optimized
+
+    private ArrayList<Instruction> instructions;
+    private Instruction end;    // stands for the address after the last instruction
+    private Instruction entry;
+    private Instruction[] functions;
+
+    /**
+     * An instruction and its operands. Address operands are kept as the instruction they point to.
+     */
+    private static class Instruction {
+        int op;
+        int[] operands;
+        Instruction target;     // the instruction a JMPI/JMPTI/JMPFI/CALL/TCALL (or a CONST before a JMP) points to
+        Instruction forward;    // the instruction that takes the place of a removed one
+        boolean removed, targeted, reached;
+        int addr;
+
+        Instruction(int op, int[] operands) {
+            this.op = op;
+            this.operands = operands;
+        }
+    }
+
+    /**
+     * Optimizes a program.
+     * @param program the program
+     * @return the optimized program, or program itself if it can't be optimized safely
+     */
+    public Program optimize(Program program) {
+        wordsBefore = program.code.length;
+        wordsAfter = wordsBefore;
+        skipped = decode(program);
+        if (skipped != null) return program;
+        immediateOperands();
+        skipped = checkJumps();
+        if (skipped != null) return program;
+        boolean changed = true;
+        while (changed) {
+            changed = removeDeadCode();
+            changed |= pushPop();
+            changed |= storeLoad();
+            changed |= threadJumps();
+        }
+        return encode(program);
+    }
+
+    /**
+     * Splits a program into instructions and links every address operand to its instruction.
+     * @return null or the reason the program can't be optimized
+     */
+    private String decode(Program program) {
+        int[] code = program.code;
+        Instruction[] at = new Instruction[code.length + 1];
+        instructions = new ArrayList<>();
+        for (int i = 0; i < code.length; ) {
+            int nOperands = Machine.operandCount(code[i]);
+            if (i + nOperands >= code.length) return "the instruction at " + i + " is truncated";
+            int[] operands = new int[nOperands];
+            System.arraycopy(code, i + 1, operands, 0, nOperands);
+            at[i] = new Instruction(code[i], operands);
+            instructions.add(at[i]);
+            i += 1 + nOperands;
+        }
+        end = new Instruction(Machine.HALT, new int[0]);
+        at[code.length] = end;
+        for (int k = 0; k < instructions.size(); k++) {
+            Instruction ins = instructions.get(k);
+            int addr;
+            switch (ins.op) {
+                case Machine.JMPI, Machine.JMPTI, Machine.JMPFI, Machine.CALL, Machine.TCALL -> addr = ins.operands[0];
+                case Machine.JMP, Machine.JMPT, Machine.JMPF -> {
+                    Instruction push = k > 0 ? instructions.get(k - 1) : null;
+                    if (push == null || push.op != Machine.CONST) return "computed jump";
+                    ins = push;
+                    addr = push.operands[0];
+                }
+                default -> {
+                    continue;
+                }
+            }
+            if (addr < 0 || addr > code.length || at[addr] == null) return "jump into an instruction at " + addr;
+            ins.target = at[addr];
+        }
+        if (program.entryPoint < 0 || program.entryPoint >= code.length || at[program.entryPoint] == null) {
+            return "bad entry point";
+        }
+        entry = at[program.entryPoint];
+        functions = new Instruction[program.functionAddrs.length];
+        for (int i = 0; i < functions.length; i++) {
+            int addr = program.functionAddrs[i];
+            if (addr < 0 || addr >= code.length || at[addr] == null) return "bad function address " + addr;
+            functions[i] = at[addr];
+        }
+        markTargets();
+        return null;
+    }
+
+    /**
+     * Fuses a CONST with the instruction that takes its value as an operand from the stack.
+     */
+    private void immediateOperands() {
+        for (int k = 0; k + 1 < instructions.size(); k++) {
+            Instruction push = instructions.get(k), next = instructions.get(k + 1);
+            if (push.op != Machine.CONST || next.targeted) continue;
+            int op = switch (next.op) {
+                case Machine.LOAD -> Machine.LOADI;
+                case Machine.GLOAD -> Machine.GLOADI;
+                case Machine.JMP -> Machine.JMPI;
+                case Machine.JMPT -> Machine.JMPTI;
+                case Machine.JMPF -> Machine.JMPFI;
+                default -> -1;
+            };
+            if (op < 0) continue;
+            push.op = op;
+            remove(next, IMMEDIATE);
+            applied[IMMEDIATE]++;
+            k++;
+        }
+        compact();
+    }
+
+    /**
+     * @return null if every jump left has its address as an operand, otherwise the reason the program can't be
+     * optimized (a jump that something else jumps to may get its address from anywhere)
+     */
+    private String checkJumps() {
+        for (Instruction ins : instructions) {
+            if (ins.op == Machine.JMP || ins.op == Machine.JMPT || ins.op == Machine.JMPF) return "computed jump";
+        }
+        return null;
+    }
+
+    /**
+     * Removes the instructions that can't be reached from the entry point or a function.
+     * @return whether anything was removed
+     */
+    private boolean removeDeadCode() {
+        ArrayList<Integer> worklist = new ArrayList<>();
+        for (int k = 0; k < instructions.size(); k++) {
+            instructions.get(k).reached = false;
+            instructions.get(k).addr = k;   // the index, while the list doesn't change
+        }
+        reach(entry, worklist);
+        for (Instruction f : functions) reach(f, worklist);
+        while (!worklist.isEmpty()) {
+            int k = worklist.remove(worklist.size() - 1);
+            Instruction ins = instructions.get(k);
+            if (ins.target != null) reach(ins.target, worklist);
+            if (ins.op != Machine.HALT && ins.op != Machine.RET && ins.op != Machine.JMPI && ins.op != Machine.TCALL
+                    && k + 1 < instructions.size()) {
+                reach(instructions.get(k + 1), worklist);
+            }
+        }
+        boolean changed = false, previousDead = false;
+        for (Instruction ins : instructions) {
+            if (!ins.reached) {
+                remove(ins, DEAD_CODE);
+                if (!previousDead) applied[DEAD_CODE]++;    // counted once for each run of dead instructions
+                changed = true;
+            }
+            previousDead = !ins.reached;
+        }
+        compact();
+        return changed;
+    }
+
+    private void reach(Instruction ins, ArrayList<Integer> worklist) {
+        if (ins.reached || ins == end) return;
+        ins.reached = true;
+        worklist.add(ins.addr);
+    }
+
+    /**
+     * Removes values that are pushed and popped straight away.
+     * @return whether anything was removed
+     */
+    private boolean pushPop() {
+        boolean changed = false;
+        for (int k = 0; k + 1 < instructions.size(); k++) {
+            Instruction push = instructions.get(k), pop = instructions.get(k + 1);
+            if (pop.op != Machine.POP || pop.targeted) continue;
+            if (push.op == Machine.CONST || push.op == Machine.LOADI || push.op == Machine.GLOADI
+                    || push.op == Machine.DUP) {
+                remove(push, PUSH_POP);
+                remove(pop, PUSH_POP);
+                applied[PUSH_POP]++;
+                changed = true;
+                k++;
+            }
+        }
+        compact();
+        return changed;
+    }
+
+    /**
+     * Keeps a stored value on the stack instead of loading it again, and removes loads that are stored straight back.
+     * @return whether anything changed
+     */
+    private boolean storeLoad() {
+        boolean changed = false;
+        // remove the loads that are stored straight back first, so STOREI n LOADI n STOREI n becomes STOREI n
+        for (int k = 0; k + 1 < instructions.size(); k++) {
+            Instruction load = instructions.get(k), store = instructions.get(k + 1);
+            if (sameSlot(load, store, Machine.LOADI, Machine.STOREI)
+                    || sameSlot(load, store, Machine.GLOADI, Machine.GSTORE)) {
+                remove(load, STORE_LOAD);
+                remove(store, STORE_LOAD);
+                applied[STORE_LOAD]++;
+                changed = true;
+                k++;
+            }
+        }
+        compact();
+        for (int k = 0; k + 1 < instructions.size(); k++) {
+            Instruction store = instructions.get(k), load = instructions.get(k + 1);
+            if (sameSlot(store, load, Machine.STOREI, Machine.LOADI)
+                    || sameSlot(store, load, Machine.GSTORE, Machine.GLOADI)) {
+                // STOREI n LOADI n -> DUP STOREI n
+                load.op = store.op;
+                store.op = Machine.DUP;
+                store.operands = new int[0];
+                applied[STORE_LOAD]++;
+                wordsAfter--;
+                changed = true;
+                k++;
+            }
+        }
+        markTargets();
+        return changed;
+    }
+
+    /**
+     * @return whether first and second are the instructions op1 n op2 n and nothing jumps to second
+     */
+    private static boolean sameSlot(Instruction first, Instruction second, int op1, int op2) {
+        return first.op == op1 && second.op == op2 && !second.targeted && first.operands[0] == second.operands[0];
+    }
+
+    /**
+     * Sends jumps to a JMPI straight to its target and removes jumps to the next instruction.
+     * @return whether anything changed
+     */
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (int k = 0; k < instructions.size(); k++) {
+            Instruction jump = instructions.get(k);
+            if (jump.op != Machine.JMPI && jump.op != Machine.JMPTI && jump.op != Machine.JMPFI) continue;
+            Instruction target = jump.target;
+            // the number of steps is bounded so a loop of jumps ends
+            for (int steps = 0; target.op == Machine.JMPI && target.target != null && target != jump
+                    && steps < instructions.size(); steps++) {
+                target = target.target;
+            }
+            if (target != jump.target) {
+                jump.target = target;
+                applied[JUMP_THREADING]++;
+                changed = true;
+            }
+            Instruction next = k + 1 < instructions.size() ? instructions.get(k + 1) : end;
+            if (jump.target == next) {
+                if (jump.op == Machine.JMPI) {
+                    remove(jump, JUMP_THREADING);
+                } else {
+                    jump.op = Machine.POP;  // the condition still has to come off the stack
+                    jump.operands = new int[0];
+                    jump.target = null;
+                    wordsAfter--;
+                }
+                applied[JUMP_THREADING]++;
+                changed = true;
+            }
+        }
+        compact();
+        return changed;
+    }
+
+    private void remove(Instruction ins, int rule) {
+        ins.removed = true;
+        removed[rule]++;
+        wordsAfter -= 1 + ins.operands.length;
+    }
+
+    /**
+     * Drops the removed instructions from the list. Whatever pointed at a removed instruction points at the next one
+     * that is kept instead.
+     */
+    private void compact() {
+        Instruction next = end;
+        for (int k = instructions.size() - 1; k >= 0; k--) {
+            Instruction ins = instructions.get(k);
+            if (ins.removed) ins.forward = next;
+            else next = ins;
+        }
+        instructions.removeIf(ins -> ins.removed);
+        for (Instruction ins : instructions) {
+            if (ins.target != null) ins.target = resolve(ins.target);
+        }
+        entry = resolve(entry);
+        for (int i = 0; i < functions.length; i++) functions[i] = resolve(functions[i]);
+        markTargets();
+    }
+
+    private static Instruction resolve(Instruction ins) {
+        while (ins.removed) ins = ins.forward;
+        return ins;
+    }
+
+    private void markTargets() {
+        for (Instruction ins : instructions) ins.targeted = false;
+        for (Instruction ins : instructions) {
+            if (ins.target != null) ins.target.targeted = true;
+        }
+        entry.targeted = true;
+        for (Instruction f : functions) f.targeted = true;
+    }
+
+    /**
+     * Gives the instructions their new addresses and writes the code.
+     */
+    private Program encode(Program program) {
+        int addr = 0;
+        for (Instruction ins : instructions) {
+            ins.addr = addr;
+            addr += 1 + ins.operands.length;
+        }
+        end.addr = addr;
+        int[] code = new int[addr];
+        int pc = 0;
+        for (Instruction ins : instructions) {
+            code[pc] = ins.op;
+            System.arraycopy(ins.operands, 0, code, pc + 1, ins.operands.length);
+            if (ins.target != null) code[pc + 1] = ins.target.addr;
+            pc += 1 + ins.operands.length;
+        }
+        int[] functionAddrs = new int[functions.length];
+        for (int i = 0; i < functions.length; i++) functionAddrs[i] = functions[i].addr;
+        return new Program(code, entry.addr, program.globalCount, program.functionNames, functionAddrs,
+                program.functionFlags);
+    }
+
+    /**
+     * @return the number of instructions each rule removed, and the size of the last program before and after
+     */
+    public String report() {
+        StringBuilder s = new StringBuilder();
+        if (skipped != null) s.append("not optimized: ").append(skipped).append('\n');
+        for (int i = 0; i < RULE_NAMES.length; i++) {
+            s.append(String.format("%-20s %6d applied %6d instructions removed%n", RULE_NAMES[i] + ":", applied[i],
+                    removed[i]));
+        }
+        s.append(String.format("%d words -> %d words%n", wordsBefore, skipped != null ? wordsBefore : wordsAfter));
+        return s.toString();
+    }
+
+    /**
+     * Optimizes a program and prints what each rule did.
+     * @param args filepath (a .vbyt or .vcomp file) [outfile] (where to write the optimized .vcomp)
+     */
+    public static void main(String[] args) {
+        Program program;
+        try {
+            program = args[0].endsWith(".vbyt") ? Compiler.assemble(Files.readString(Path.of(args[0])))
+                    : Program.read(args[0]);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println(e);
+            return;
+        }
+        PeepholeOptimizer optimizer = new PeepholeOptimizer();
+        Program optimized = optimizer.optimize(program);
+        System.out.print(optimizer.report());
+        if (args.length > 1) {
+            try {
+                optimized.write(args[1]);
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+}
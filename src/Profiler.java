@@ -0,0 +1,220 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The Profiler class counts what a Machine executes: every opcode, the calls to each function, the instructions run in
+ * each function (exclusive) and while it is on the call stack (inclusive), and how often each backward jump of a loop
+ * is taken. The Machine reports each instruction before running it and the Profiler works out calls, returns and
+ * jumps from consecutive instructions, so it needs nothing else from the Machine.
+ * Results are exported as folded stacks (one "a;b;c count" line per call path, the input of flame graph tools) and as
+ * a JSON summary.
+ */
+public class Profiler {
+    public static final int MAX_DEPTH = 512;  // call paths deeper than this are counted in their deepest kept frame
+    private static final int MAIN = 0;  // the function id of the top level code
+
+    private final Program program;
+    private final int[] functionAt;     // the function id of each address that has been called, -1 for the others
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<Integer> addresses = new ArrayList<>();
+    private long[] calls = new long[8], inclusive = new long[8], exclusive = new long[8];
+    private int[] active = new int[8];  // the number of frames of each function on the call stack
+    private final long[] opCounts = new long[128];
+    private final long[] backEdges;     // the times the jump at each address went backwards
+    private final int[] backEdgeTargets;
+    private long instructions = 0;
+
+    // the call stack
+    private int[] frames = new int[64];
+    private long[] frameStarts = new long[64];  // the instruction count when each frame was entered
+    private int depth = 0;
+    private Node node;  // the call path of the current frame
+    private final Node root;
+    private int hidden = 0;     // frames deeper than MAX_DEPTH
+
+    private int lastPc = -1, lastOp = -1;
+    private int[] lastCode;
+
+    /**
+     * A call path. Its count is the instructions run with exactly this path on the call stack.
+     */
+    private static class Node {
+        final int function;
+        final Node parent;
+        final HashMap<Integer, Node> children = new HashMap<>();
+        long count = 0;
+
+        Node(int function, Node parent) {
+            this.function = function;
+            this.parent = parent;
+        }
+
+        Node child(int function) {
+            return children.computeIfAbsent(function, f -> new Node(f, this));
+        }
+    }
+
+    /**
+     * @param program the program that will be profiled. Its function table names the functions.
+     */
+    public Profiler(Program program) {
+        this.program = program;
+        functionAt = new int[program.code.length];
+        Arrays.fill(functionAt, -1);
+        backEdges = new long[program.code.length];
+        backEdgeTargets = new int[program.code.length];
+        names.add("<main>");
+        addresses.add(program.entryPoint);
+        root = node = new Node(MAIN, null);
+    }
+
+    /**
+     * Counts the instruction at pc, which the machine is about to run.
+     * @param pc the address of the instruction
+     * @param code the program memory
+     */
+    public void step(int pc, int[] code) {
+        if (lastCode != null) follow(pc);
+        int op = code[pc];
+        instructions++;
+        if (op >= 0 && op < opCounts.length) opCounts[op]++;
+        exclusive[depth > 0 ? frames[depth - 1] : MAIN]++;
+        node.count++;
+        lastPc = pc;
+        lastOp = op;
+        lastCode = code;
+    }
+
+    /**
+     * Works out what the last instruction did from where it went.
+     */
+    private void follow(int pc) {
+        switch (lastOp) {
+            case Machine.JMP, Machine.JMPT, Machine.JMPF, Machine.JMPI, Machine.JMPTI, Machine.JMPFI -> {
+                if (pc <= lastPc && pc >= 0 && lastPc < backEdges.length) {
+                    backEdges[lastPc]++;
+                    backEdgeTargets[lastPc] = pc;
+                }
+            }
+            // a CALL that doesn't branch to its function was answered by a cache or compiled code
+            case Machine.CALL -> {
+                if (lastPc + 1 < lastCode.length && pc == lastCode[lastPc + 1]) enter(pc);
+            }
+            case Machine.TCALL -> {
+                leave();
+                enter(pc);
+            }
+            case Machine.RET -> leave();
+        }
+    }
+
+    private void enter(int addr) {
+        int f = function(addr);
+        calls[f]++;
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, 2 * depth);
+            frameStarts = Arrays.copyOf(frameStarts, 2 * depth);
+        }
+        frames[depth] = f;
+        frameStarts[depth++] = instructions;
+        active[f]++;
+        if (depth > MAX_DEPTH) hidden++;
+        else node = node.child(f);
+    }
+
+    private void leave() {
+        if (depth == 0) return;
+        int f = frames[--depth];
+        // a recursive function is counted once, by its outermost frame
+        if (--active[f] == 0) inclusive[f] += instructions - frameStarts[depth];
+        if (hidden > 0) hidden--;
+        else node = node.parent;
+    }
+
+    /**
+     * @return the id of the function at addr, adding it if it is new
+     */
+    private int function(int addr) {
+        if (addr >= 0 && addr < functionAt.length && functionAt[addr] >= 0) return functionAt[addr];
+        int f = names.size();
+        String name = program.nameAt(addr);
+        names.add(name != null ? name : "@" + addr);
+        addresses.add(addr);
+        if (addr >= 0 && addr < functionAt.length) functionAt[addr] = f;
+        if (f == calls.length) {
+            calls = Arrays.copyOf(calls, 2 * f);
+            inclusive = Arrays.copyOf(inclusive, 2 * f);
+            exclusive = Arrays.copyOf(exclusive, 2 * f);
+            active = Arrays.copyOf(active, 2 * f);
+        }
+        return f;
+    }
+
+    /**
+     * @return the number of instructions counted
+     */
+    public long instructions() {
+        return instructions;
+    }
+
+    /**
+     * @return a line "outer;...;inner count" for every call path that ran instructions, for flame graph tools
+     */
+    public String folded() {
+        StringBuilder strB = new StringBuilder();
+        ArrayDeque<Node> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        ArrayDeque<String> path = new ArrayDeque<>();
+        while (!toVisit.isEmpty()) {
+            Node n = toVisit.pop();
+            if (n.count > 0) {
+                for (Node p = n; p != null; p = p.parent) path.push(names.get(p.function));
+                strB.append(String.join(";", path)).append(' ').append(n.count).append('\n');
+                path.clear();
+            }
+            for (Node child : n.children.values()) toVisit.push(child);
+        }
+        return strB.toString();
+    }
+
+    /**
+     * @return the counts as JSON: the instructions run, the count of each opcode, the calls and inclusive and
+     * exclusive instruction counts of each function, and the backward jumps taken
+     */
+    public String json() {
+        StringBuilder strB = new StringBuilder();
+        strB.append("{\n  \"instructions\": ").append(instructions).append(",\n  \"opcodes\": {");
+        String separator = "\n";
+        for (int op = 0; op < opCounts.length; op++) {
+            if (opCounts[op] == 0) continue;
+            String name = Compiler.INT_TO_INSTRUCTION.getOrDefault(op, Integer.toString(op));
+            strB.append(separator).append("    \"").append(name).append("\": ").append(opCounts[op]);
+            separator = ",\n";
+        }
+        strB.append("\n  },\n  \"functions\": [");
+        separator = "\n";
+        for (int f = 0; f < names.size(); f++) {
+            strB.append(separator).append("    {\"name\": \"").append(escape(names.get(f)))
+                    .append("\", \"address\": ").append(addresses.get(f))
+                    .append(", \"calls\": ").append(calls[f])
+                    .append(", \"inclusive\": ").append(f == MAIN ? instructions : inclusive[f])
+                    .append(", \"exclusive\": ").append(exclusive[f]).append('}');
+            separator = ",\n";
+        }
+        strB.append("\n  ],\n  \"backEdges\": [");
+        separator = "\n";
+        for (int pc = 0; pc < backEdges.length; pc++) {
+            if (backEdges[pc] == 0) continue;
+            strB.append(separator).append("    {\"from\": ").append(pc).append(", \"to\": ").append(backEdgeTargets[pc])
+                    .append(", \"count\": ").append(backEdges[pc]).append('}');
+            separator = ",\n";
+        }
+        return strB.append("\n  ]\n}\n").toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
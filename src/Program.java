@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The Program class is a compiled program together with what the Compiler knows about it, and reads and writes the
+ * binary .vcomp format. A .vcomp file is a sequence of little-endian ints:
+ * <pre>
+ *     magic ("VCMP"), version, entry point, global count, function count, code length
+ *     for every function: address, flags, name length in bytes, the UTF-8 name padded with zeros to a multiple of 4
+ *     bytes
+ *     the code
+ * </pre>
+ * Files that don't start with the magic number are read in the old text format of whitespace separated ints.
+ * A Program is not changed once it is built, so one Program can be loaded by any number of Machines, on any threads,
+ * without copying. The arrays must not be modified after construction.
+ */
+public class Program {
+    public static final int MAGIC = 'V' | 'C' << 8 | 'M' << 16 | 'P' << 24;    // the bytes "VCMP" in a file
+    public static final int VERSION = 1;
+    // function flags
+    public static final int PURE = 1;  // the result only depends on the arguments and there are no side effects
+    private static final int HEADER_INTS = 6;
+
+    public final int[] code;
+    public final int entryPoint;
+    public final int globalCount;       // the number of global variables the code uses
+    public final String[] functionNames;
+    public final int[] functionAddrs;   // the address of each function in functionNames
+    public final int[] functionFlags;   // the flags (e.g. PURE) of each function in functionNames
+    private volatile int[] decoded;     // the code for the pre-decoded engine, made by the first Machine that needs it
+    private volatile int[] costs;       // the size of the basic block each instruction ends, for metering
+    private volatile Verifier.Result verification;  // what the Verifier found, made like decoded
+
+    public Program(int[] code, int entryPoint, int globalCount, String[] functionNames, int[] functionAddrs,
+                   int[] functionFlags) {
+        this.code = code;
+        this.entryPoint = entryPoint;
+        this.globalCount = globalCount;
+        this.functionNames = functionNames;
+        this.functionAddrs = functionAddrs;
+        this.functionFlags = functionFlags;
+    }
+
+    /**
+     * A program whose functions have no flags.
+     */
+    public Program(int[] code, int entryPoint, int globalCount, String[] functionNames, int[] functionAddrs) {
+        this(code, entryPoint, globalCount, functionNames, functionAddrs, new int[functionAddrs.length]);
+    }
+
+    /**
+     * A program that starts at address 0 and has no function table.
+     * @param code the program
+     */
+    public Program(int[] code) {
+        this(code, 0, countGlobals(code), new String[0], new int[0]);
+    }
+
+    /**
+     * @param code a program
+     * @return one more than the highest global index the program names as an operand (GSTORE n, GLOADI n or
+     * CONST n GLOAD)
+     */
+    public static int countGlobals(int[] code) {
+        int count = 0;
+        for (int i = 0; i < code.length; i += 1 + Machine.operandCount(code[i])) {
+            if (i + 1 < code.length && (code[i] == Machine.GSTORE || code[i] == Machine.GLOADI)) {
+                count = Math.max(count, code[i + 1] + 1);
+            } else if (i + 2 < code.length && code[i] == Machine.CONST && code[i + 2] == Machine.GLOAD) {
+                count = Math.max(count, code[i + 1] + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the code decoded for the pre-decoded engine. It is made once and shared by every Machine running this
+     * program; two threads decoding at once just make the same array twice.
+     */
+    int[] decoded() {
+        int[] d = decoded;
+        if (d == null) decoded = d = Machine.decode(code);
+        return d;
+    }
+
+    /**
+     * @return the instructions in the basic block that each instruction ends, made once and shared like decoded()
+     */
+    int[] costs() {
+        int[] c = costs;
+        if (c == null) costs = c = Machine.blockCosts(code);
+        return c;
+    }
+
+    /**
+     * @return what the Verifier found out about the program, made once and shared like decoded()
+     */
+    public Verifier.Result verification() {
+        Verifier.Result v = verification;
+        if (v == null) verification = v = Verifier.verify(this);
+        return v;
+    }
+
+    /**
+     * @param addr an address in the code
+     * @return the flags of the function at addr, 0 if there is none
+     */
+    public int flagsAt(int addr) {
+        for (int i = 0; i < functionAddrs.length; i++) {
+            if (functionAddrs[i] == addr) return functionFlags[i];
+        }
+        return 0;
+    }
+
+    /**
+     * @param addr an address in the code
+     * @return the name of the function at addr or null if there is none
+     */
+    public String nameAt(int addr) {
+        for (int i = 0; i < functionAddrs.length; i++) {
+            if (functionAddrs[i] == addr) return functionNames[i];
+        }
+        return null;
+    }
+
+    /**
+     * Reads a .vcomp file. Binary files are memory-mapped and their code copied out in one bulk read.
+     * @param path the filepath
+     * @return the program
+     * @throws IOException if the file can't be read or is a binary file this version can't read
+     */
+    public static Program read(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= 4 * HEADER_INTS) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt(0) == MAGIC) return readBinary(buffer, path);
+            }
+        }
+        return readText(path);
+    }
+
+    /**
+     * Reads a binary program from the buffer's position to its end.
+     * @param path the filepath, for error messages
+     */
+    static Program readBinary(ByteBuffer buffer, String path) throws IOException {
+        if (buffer.remaining() < 4 * HEADER_INTS || buffer.getInt() != MAGIC) {
+            throw new IOException(path + ": not a binary .vcomp program");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException(path + ": unsupported .vcomp version " + version);
+        int entryPoint = buffer.getInt();
+        int globalCount = buffer.getInt();
+        int nFunctions = buffer.getInt();
+        int codeLength = buffer.getInt();
+        if (nFunctions < 0 || codeLength < 0 || (long) codeLength * 4 > buffer.remaining()) {
+            throw new IOException(path + ": truncated .vcomp file");
+        }
+        String[] names = new String[nFunctions];
+        int[] addrs = new int[nFunctions];
+        int[] flags = new int[nFunctions];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < nFunctions; i++) {
+            addrs[i] = buffer.getInt();
+            flags[i] = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) throw new IOException(path + ": truncated .vcomp file");
+            if (length > bytes.length) bytes = new byte[length];
+            buffer.get(bytes, 0, length);
+            names[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + (-length & 3));
+        }
+        if ((long) codeLength * 4 != buffer.remaining()) throw new IOException(path + ": bad .vcomp code length");
+        int[] code = new int[codeLength];
+        buffer.asIntBuffer().get(code);
+        return new Program(code, entryPoint, globalCount, names, addrs, flags);
+    }
+
+    private static Program readText(String path) throws IOException {
+        String text = Files.readString(Path.of(path)).strip();
+        if (text.isEmpty()) return new Program(new int[0]);
+        String[] words = text.split("\\s+");
+        int[] code = new int[words.length];
+        for (int i = 0; i < words.length; i++) code[i] = Integer.parseInt(words[i]);
+        return new Program(code);
+    }
+
+    /**
+     * Writes the program as a binary .vcomp file.
+     * @param path the filepath
+     * @throws IOException if the file can't be written
+     */
+    public void write(String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(binarySize()).order(ByteOrder.LITTLE_ENDIAN);
+        put(buffer);
+        writeFile(buffer.flip(), path);
+    }
+
+    /**
+     * @return the size of the program as a binary .vcomp file in bytes
+     */
+    int binarySize() {
+        int size = 4 * (HEADER_INTS + code.length);
+        for (String name : functionNames) {
+            int length = name.getBytes(StandardCharsets.UTF_8).length;
+            size += 12 + length + (-length & 3);
+        }
+        return size;
+    }
+
+    /**
+     * Puts the program in the binary .vcomp format at the position of a little-endian buffer, moving it past the end.
+     */
+    void put(ByteBuffer buffer) {
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(entryPoint).putInt(globalCount).putInt(functionNames.length)
+                .putInt(code.length);
+        for (int i = 0; i < functionNames.length; i++) {
+            byte[] name = functionNames[i].getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(functionAddrs[i]).putInt(functionFlags[i]).putInt(name.length).put(name);
+            buffer.position(buffer.position() + (-name.length & 3));
+        }
+        buffer.asIntBuffer().put(code);
+        buffer.position(buffer.position() + 4 * code.length);
+    }
+
+    /**
+     * Writes the buffer from its position to its limit to a file, replacing what was there.
+     */
+    static void writeFile(ByteBuffer buffer, String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+}
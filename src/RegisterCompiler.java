@@ -0,0 +1,429 @@
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The RegisterCompiler class converts the Parser's syntax tree to code for the RegisterMachine. Variables get the same
+ * slots as in the stack code: globals are numbered in the order they are first assigned at the top level, a
+ * function's arguments are numbered in the order they are declared and its locals in the order they are first
+ * assigned. As in the stack code, a name in a function means the global until it is first assigned there. Each slot is
+ * a register, so most statements need no loads or stores.
+ */
+public class RegisterCompiler {
+    private int[] code = new int[64];
+    private int size = 0;
+    private final Map<String, Integer> globals = new LinkedHashMap<>();   // global name to register
+    private final Map<String, Function> functions = new LinkedHashMap<>();
+    private final ArrayList<int[]> callFixups = new ArrayList<>();    // {position of the address, function index}
+
+    // the frame currently being compiled
+    private Map<String, Integer> locals;    // null at the top level
+    private final Set<String> bound = new HashSet<>();  // the locals assigned so far in the code written
+    private int nArgs, tempBase, nextTemp, frameSize;
+    private int lastInstruction = -1, lastLabel = -1;
+
+    /**
+     * A function's syntax and register layout.
+     */
+    private static class Function {
+        final String name;
+        final Parser.ExpressionNode args, code;
+        final int index;
+        final Map<String, Integer> slots = new HashMap<>();
+        int nArgs, nLocals, addr = -1;
+
+        Function(String name, Parser.ExpressionNode args, Parser.ExpressionNode code, int index) {
+            this.name = name;
+            this.args = args;
+            this.code = code;
+            this.index = index;
+        }
+    }
+
+    private RegisterCompiler() {
+    }
+
+    /**
+     * Lexes, parses and compiles source code to register code in memory.
+     * @param source the source code
+     * @return the register program
+     * @throws UnexpectedTokenException when the source code contains an unrecognized sequence or breaks the grammar
+     */
+    public static int[] compileSource(Reader source) throws UnexpectedTokenException {
+        Lexer lexer = new Lexer();
+        lexer.tokenize(source);
+        return compile(AstOptimizer.optimize(Parser.parseTree(lexer)));
+    }
+
+    /**
+     * Converts a syntax tree to register code. The top level comes first and ends with HALT. Functions follow it.
+     * @param ast the head of the tree
+     * @return the register program
+     */
+    static int[] compile(Parser.ExpressionNode ast) {
+        RegisterCompiler c = new RegisterCompiler();
+        c.declare(ast);
+
+        // the top level: globals are the first registers of the bottom frame
+        c.locals = null;
+        c.startFrame(c.globals.size());
+        int enter = c.emit(RegisterMachine.ENTER, 0);
+        c.statement(ast);
+        c.emit(RegisterMachine.HALT);
+        c.code[enter + 1] = c.frameSize;
+
+        for (Function f : c.functions.values()) {
+            f.addr = c.size;
+            c.locals = f.slots;
+            c.bound.clear();
+            c.nArgs = f.nArgs;
+            c.startFrame(f.nArgs + f.nLocals);
+            enter = c.emit(RegisterMachine.ENTER, 0);
+            c.statement(f.code);
+            if (c.code[c.lastInstruction] != RegisterMachine.RET || c.lastLabel == c.size) {
+                c.emit(RegisterMachine.LOADK, c.tempBase, -1);  // the same default return as the stack code
+                c.emit(RegisterMachine.RET, c.tempBase);
+                c.frameSize = Math.max(c.frameSize, c.tempBase + 1);
+            }
+            c.code[enter + 1] = c.frameSize;
+        }
+        Function[] byIndex = c.functions.values().toArray(new Function[0]);
+        for (int[] fixup : c.callFixups) {
+            c.code[fixup[0]] = byIndex[fixup[1]].addr;
+        }
+        return Arrays.copyOf(c.code, c.size);
+    }
+
+    /**
+     * Finds the functions and the top-level assignments before anything is compiled so every function and global has
+     * its slot when it is first used.
+     */
+    private void declare(Parser.ExpressionNode node) {
+        if (node == null || node.children == null) return;
+        switch (node.ruleName()) {
+            case "function" -> {
+                String name = node.value;
+                Function f = new Function(name, node.children.get(0), node.children.get(1), functions.size());
+                functions.put(name, f);
+                declareArgs(f, node.children.get(0));
+                declareLocals(f, node.children.get(1));
+                if (node.children.size() > 2) declare(node.children.get(2));
+            }
+            case "assign", "declare" -> {
+                globals.putIfAbsent(node.children.get(0).value, globals.size());
+            }
+            default -> {
+                for (Parser.ExpressionNode child : inCompileOrder(node)) declare(child);
+            }
+        }
+    }
+
+    private void declareArgs(Function f, Parser.ExpressionNode argsDec) {
+        while (argsDec != null && argsDec.children != null && !argsDec.children.isEmpty()) {
+            f.slots.put(argsDec.children.get(0).value, -f.nArgs - 1);
+            f.nArgs++;
+            argsDec = argsDec.children.size() > 1 ? argsDec.children.get(1) : null;
+        }
+    }
+
+    private void declareLocals(Function f, Parser.ExpressionNode node) {
+        if (node == null || node.children == null) return;
+        if (node.ruleName().equals("function")) {
+            declare(node);
+        } else if (node.ruleName().equals("assign") || node.ruleName().equals("declare")) {
+            if (!f.slots.containsKey(node.children.get(0).value)) {
+                f.slots.put(node.children.get(0).value, f.nLocals);
+                f.nLocals++;
+            }
+        } else {
+            for (Parser.ExpressionNode child : inCompileOrder(node)) declareLocals(f, child);
+        }
+    }
+
+    /**
+     * @return the children of a node in the order the stack code is written (a for loop's body before its increment)
+     */
+    private static ArrayList<Parser.ExpressionNode> inCompileOrder(Parser.ExpressionNode node) {
+        ArrayList<Parser.ExpressionNode> children = new ArrayList<>(node.children);
+        if (node.ruleName().equals("for") && children.size() >= 4) {
+            Parser.ExpressionNode increment = children.remove(2);
+            children.add(3, increment);
+        }
+        return children;
+    }
+
+    private void startFrame(int nVars) {
+        tempBase = nVars;
+        nextTemp = nVars;
+        frameSize = nVars;
+    }
+
+    /**
+     * @return the register of a variable in the current frame or -1 if it is a global read from inside a function
+     * (or not declared at all). A local is a global until it is bound.
+     */
+    private int register(String name) {
+        if (locals == null) return globals.getOrDefault(name, -1);
+        Integer slot = locals.get(name);
+        if (slot == null || (slot >= 0 && !bound.contains(name))) return -1;
+        return slot < 0 ? -slot - 1 : nArgs + slot;
+    }
+
+    /**
+     * Makes a function's variable local from here on if it is one of its locals.
+     */
+    private void bind(String name) {
+        if (locals != null && locals.containsKey(name)) bound.add(name);
+    }
+
+    private int newTemp() {
+        int r = nextTemp++;
+        frameSize = Math.max(frameSize, nextTemp);
+        return r;
+    }
+
+    private void statement(Parser.ExpressionNode node) {
+        if (node == null || node.children == null) return;
+        nextTemp = tempBase;
+        switch (node.ruleName()) {
+            case "code_block", "lines", "line" -> {
+                for (Parser.ExpressionNode child : node.children) statement(child);
+            }
+            case "function" -> {
+                if (node.children.size() > 2) statement(node.children.get(2));
+            }
+            case "if" -> {
+                int cond = expression(node.children.get(0), -1);
+                int jump = emit(RegisterMachine.JMPF, cond, 0);
+                statement(node.children.get(1));
+                code[jump + 2] = lastLabel = size;
+                if (node.children.size() > 2) statement(node.children.get(2));
+            }
+            case "while" -> {
+                int top = size;
+                int cond = expression(node.children.get(0), -1);
+                int jump = emit(RegisterMachine.JMPF, cond, 0);
+                statement(node.children.get(1));
+                emit(RegisterMachine.JMP, top);
+                code[jump + 2] = lastLabel = size;
+                if (node.children.size() > 2) statement(node.children.get(2));
+            }
+            case "for" -> {
+                statement(node.children.get(0));
+                int top = size;
+                nextTemp = tempBase;
+                int cond = expression(node.children.get(1), -1);
+                int jump = emit(RegisterMachine.JMPF, cond, 0);
+                statement(node.children.get(3));
+                statement(node.children.get(2));
+                emit(RegisterMachine.JMP, top);
+                code[jump + 2] = lastLabel = size;
+                if (node.children.size() > 4) statement(node.children.get(4));
+            }
+            case "declare" -> bind(node.children.get(0).value);
+            case "print" -> emit(RegisterMachine.PRINT, expression(node.children.get(0), -1));
+            case "assign" -> {
+                String name = node.children.get(0).value;
+                bind(name);     // before its value, as in the stack code
+                int r = register(name);
+                if (r >= 0) {
+                    expression(node.children.get(1), r);
+                } else if (globals.containsKey(name)) {
+                    emit(RegisterMachine.GPUT, globals.get(name), expression(node.children.get(1), -1));
+                } else {
+                    System.err.println("Can't find var " + name);
+                }
+            }
+            case "element_assign" -> {
+                int[] r = operands(node.children);
+                emit(RegisterMachine.ASTORE, r[0], r[1], r[2]);
+            }
+            case "ret" -> {
+                int r;
+                if (node.children.isEmpty()) {
+                    r = newTemp();
+                    emit(RegisterMachine.LOADK, r, -1);
+                } else {
+                    r = expression(node.children.get(0), -1);
+                }
+                emit(RegisterMachine.RET, r);
+            }
+            default -> expression(node, -1);    // an expression used as a statement
+        }
+    }
+
+    /**
+     * Writes the code for an expression.
+     * @param node the expression
+     * @param target the register to put the result in or -1 to let the compiler choose
+     * @return the register holding the result
+     */
+    private int expression(Parser.ExpressionNode node, int target) {
+        switch (node.ruleName()) {
+            case "const" -> {
+                int r = target >= 0 ? target : newTemp();
+                emit(RegisterMachine.LOADK, r, Integer.parseInt(node.value.strip()));
+                return r;
+            }
+            case "ref" -> {
+                int r = register(node.value);
+                if (r >= 0) {
+                    if (target >= 0 && target != r) emit(RegisterMachine.MOV, target, r);
+                    return target >= 0 ? target : r;
+                }
+                if (!globals.containsKey(node.value)) System.err.println("Can't find var " + node.value);
+                r = target >= 0 ? target : newTemp();
+                emit(RegisterMachine.GGET, r, globals.getOrDefault(node.value, 0));
+                return r;
+            }
+            case "item" -> {
+                return expression(node.children.get(0), target);
+            }
+            case "unary" -> {
+                int save = nextTemp;
+                int a = expression(node.children.get(0), -1);
+                nextTemp = save;
+                int r = target >= 0 ? target : newTemp();
+                emit(node.op.equals("SUB") ? RegisterMachine.NEG : RegisterMachine.NOT, r, a);
+                return r;
+            }
+            case "sum", "product", "comparison", "equality", "and", "or" -> {
+                int save = nextTemp;
+                int a = expression(node.children.get(0), -1);
+                if (locals == null && a < tempBase && containsCall(node.children.get(1))) {
+                    // the call could change a global that the left side read
+                    int t = newTemp();
+                    emit(RegisterMachine.MOV, t, a);
+                    a = t;
+                }
+                int b = expression(node.children.get(1), -1);
+                nextTemp = save;
+                int r = target >= 0 ? target : newTemp();
+                if (node.op.equals("NEQ")) {
+                    emit(RegisterMachine.EQ, r, a, b);
+                    emit(RegisterMachine.NOT, r, r);
+                } else {
+                    emit(Arrays.asList(RegisterMachine.NAMES).indexOf(node.op), r, a, b);
+                }
+                return r;
+            }
+            case "element", "new_array" -> {
+                int save = nextTemp;
+                int[] operands = operands(node.children);
+                nextTemp = save;
+                int r = target >= 0 ? target : newTemp();
+                int op = Arrays.asList(RegisterMachine.NAMES).indexOf(node.op);
+                if (operands.length == 2) emit(op, r, operands[0], operands[1]);
+                else emit(op, r, operands[0]);
+                return r;
+            }
+            case "func_call" -> {
+                String fName = node.value;
+                Function f = functions.get(fName);
+                Intrinsics.Intrinsic intrinsic = f == null ? Intrinsics.lookup(fName) : null;
+                ArrayList<Parser.ExpressionNode> args = new ArrayList<>();
+                Parser.ExpressionNode argNode = node.children.isEmpty() ? null : node.children.get(0);
+                while (argNode != null) {
+                    if (!argNode.ruleName().equals("args")) {
+                        args.add(argNode);  // the last argument is not wrapped in an args node
+                        break;
+                    }
+                    if (argNode.children == null || argNode.children.isEmpty()) break;
+                    args.add(argNode.children.get(0));
+                    argNode = argNode.children.size() > 1 ? argNode.children.get(1) : null;
+                }
+                if (f == null && fName.equals("snapshot") && args.isEmpty()) {
+                    // the register machine has no snapshots, so the mark only gives its value
+                    int r = target >= 0 ? target : newTemp();
+                    emit(RegisterMachine.LOADK, r, 0);
+                    return r;
+                }
+                if (f == null && fName.equals("len") && args.size() == 1) {
+                    // the length of an array, unless the program declares a function called len
+                    int save = nextTemp;
+                    int a = expression(args.get(0), -1);
+                    nextTemp = save;
+                    int r = target >= 0 ? target : newTemp();
+                    emit(RegisterMachine.ALEN, r, a);
+                    return r;
+                }
+                if (f == null && intrinsic == null) {
+                    System.err.println("func " + fName + " not found");
+                    return target >= 0 ? target : newTemp();
+                }
+                // the last argument is evaluated first, as in the stack code. A callee's frame takes argument i
+                // from register base + i, while a host function reads them from base in the order they were
+                // evaluated, as they lie on the stack.
+                int base = nextTemp, n = args.size();
+                for (int i = n - 1; i >= 0; i--) {
+                    nextTemp = base + n;
+                    expression(args.get(i), intrinsic != null ? base + n - 1 - i : base + i);
+                }
+                nextTemp = base;
+                int r = target >= 0 ? target : newTemp();
+                frameSize = Math.max(frameSize, base + n);
+                if (intrinsic != null) {
+                    // a host function is called without a frame
+                    if (intrinsic.arity == n) emit(RegisterMachine.NATIVE, r, intrinsic.index, base);
+                    else System.err.println("func " + fName + " takes " + intrinsic.arity + " arguments");
+                    return r;
+                }
+                int call = emit(RegisterMachine.CALL, r, 0, base);
+                callFixups.add(new int[]{call + 2, f.index});
+                return r;
+            }
+            default -> {
+                System.err.println("Can't compile " + node.ruleName());
+                return target >= 0 ? target : newTemp();
+            }
+        }
+    }
+
+    /**
+     * Writes the code for the operands of an instruction from left to right.
+     * @return the registers holding them
+     */
+    private int[] operands(List<Parser.ExpressionNode> nodes) {
+        int[] registers = new int[nodes.size()];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = expression(nodes.get(i), -1);
+            if (locals == null && registers[i] < tempBase && containsCall(nodes.subList(i + 1, nodes.size()))) {
+                // a call in a later operand could change a global that this one read
+                int t = newTemp();
+                emit(RegisterMachine.MOV, t, registers[i]);
+                registers[i] = t;
+            }
+        }
+        return registers;
+    }
+
+    private static boolean containsCall(List<Parser.ExpressionNode> nodes) {
+        for (Parser.ExpressionNode node : nodes) if (containsCall(node)) return true;
+        return false;
+    }
+
+    private static boolean containsCall(Parser.ExpressionNode node) {
+        if (node.ruleName().equals("func_call")) return true;
+        if (node.children == null) return false;
+        for (Parser.ExpressionNode child : node.children) if (containsCall(child)) return true;
+        return false;
+    }
+
+    /**
+     * appends an instruction
+     * @return the address of the instruction
+     */
+    private int emit(int... instruction) {
+        if (size + instruction.length > code.length) code = Arrays.copyOf(code, 2 * code.length + instruction.length);
+        System.arraycopy(instruction, 0, code, size, instruction.length);
+        lastInstruction = size;
+        size += instruction.length;
+        return lastInstruction;
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * The RegisterMachine class is a register-based alternative to Machine. Instructions name their operands and result
+ * as registers in the current frame instead of pushing and popping, so "a = b + c" is a single ADD.
+ * <p>
+ * All registers live in one int array. Frames are windows into it: register r of the current frame is
+ * regs[fp + r]. The top level's frame starts at 0 and its first registers are the global variables, so functions
+ * read and write globals with GGET and GPUT using their absolute index. A function's frame starts with its arguments
+ * followed by its locals and then temporaries.
+ */
+public class RegisterMachine {
+    private int[] programMemory, regs;
+    private int[] frames;   // saved (return address, frame pointer, result register) for every active call
+    private int pc, fp, framesTop;
+    private final ArrayHeap heap = new ArrayHeap();     // the arrays, freed when a program is loaded
+    private OutputSink out = new BufferedOutput();  // receives the values PRINTed, as in the Machine
+
+    // the instruction set. d is a result register, a/b/s are source registers.
+    public final static int
+            ADD = 1,        // ADD d a b
+            SUB = 2,        // SUB d a b
+            MUL = 3,        // MUL d a b
+            DIV = 4,        // DIV d a b
+            LT = 5,         // LT d a b
+            GT = 6,         // GT d a b
+            LEQ = 7,        // LEQ d a b
+            GEQ = 8,        // GEQ d a b
+            EQ = 9,         // EQ d a b
+            AND = 10,       // AND d a b
+            OR = 11,        // OR d a b
+            NOT = 12,       // NOT d a
+            JMP = 13,       // JMP addr
+            JMPT = 14,      // JMPT a addr: branch if a is 1
+            JMPF = 15,      // JMPF a addr: branch if a is 0
+            LOADK = 16,     // LOADK d number
+            MOV = 17,       // MOV d s
+            GGET = 18,      // GGET d global: read a global from inside a function
+            GPUT = 19,      // GPUT global s: write a global from inside a function
+            PRINT = 20,     // PRINT a
+            HALT = 21,      // HALT
+            CALL = 22,      // CALL d addr base: call with the arguments in base, base+1, ... and the result in d
+            RET = 23,       // RET a
+            NEG = 24,       // NEG d a
+            MOD = 25,       // MOD d a b
+            ENTER = 26,     // ENTER size: make sure the frame has size registers. The first instruction of a frame.
+            NEWARR = 27,    // NEWARR d a: a new array of a zeros
+            ALOAD = 28,     // ALOAD d a i: element i of array a
+            ASTORE = 29,    // ASTORE a i s: store s in element i of array a
+            ALEN = 30,      // ALEN d a: the length of array a
+            NATIVE = 31;    // NATIVE d index base: a host function (see Intrinsics) on the args from base, last first
+
+    public final static String[] NAMES = {null, "ADD", "SUB", "MUL", "DIV", "LT", "GT", "LEQ", "GEQ", "EQ", "AND",
+            "OR", "NOT", "JMP", "JMPT", "JMPF", "LOADK", "MOV", "GGET", "GPUT", "PRINT", "HALT", "CALL", "RET", "NEG",
+            "MOD", "ENTER", "NEWARR", "ALOAD", "ASTORE", "ALEN", "NATIVE"};
+
+    public RegisterMachine() {
+        regs = new int[300];
+        frames = new int[3 * 32];
+    }
+
+    /**
+     * loads a program from an int array
+     * @param program
+     */
+    public void load(int[] program) {
+        programMemory = program.clone();
+        pc = 0;
+        fp = 0;
+        framesTop = 0;
+        heap.clear();
+    }
+
+    /**
+     * Sends the values PRINTed by the following runs to a sink, as Machine.setOutput does.
+     * @param out the sink
+     */
+    public void setOutput(OutputSink out) {
+        this.out = out;
+    }
+
+    /**
+     * @param op an instruction code
+     * @return the number of operands that follow the instruction in program memory
+     */
+    public static int operandCount(int op) {
+        return switch (op) {
+            case ADD, SUB, MUL, DIV, LT, GT, LEQ, GEQ, EQ, AND, OR, MOD, CALL, ALOAD, ASTORE, NATIVE -> 3;
+            case NOT, JMPT, JMPF, LOADK, MOV, GGET, GPUT, NEG, NEWARR, ALEN -> 2;
+            case JMP, PRINT, RET, ENTER -> 1;
+            default -> 0;
+        };
+    }
+
+    /**
+     * runs the currently loaded program until HALT
+     */
+    public void run() {
+        int[] code = programMemory, regs = this.regs;
+        ArrayHeap heap = this.heap;
+        OutputSink out = this.out;
+        int pc = this.pc, fp = this.fp;
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case ADD -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] + regs[fp + code[pc + 3]];
+                        pc += 4;
+                    }
+                    case SUB -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] - regs[fp + code[pc + 3]];
+                        pc += 4;
+                    }
+                    case MUL -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] * regs[fp + code[pc + 3]];
+                        pc += 4;
+                    }
+                    case DIV -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] / regs[fp + code[pc + 3]];
+                        pc += 4;
+                    }
+                    case MOD -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] % regs[fp + code[pc + 3]];
+                        pc += 4;
+                    }
+                    case LT -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] < regs[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                    }
+                    case GT -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] > regs[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                    }
+                    case LEQ -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] <= regs[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                    }
+                    case GEQ -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] >= regs[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                    }
+                    case EQ -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] == regs[fp + code[pc + 3]] ? 1 : 0;
+                        pc += 4;
+                    }
+                    case AND -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] == 1 && regs[fp + code[pc + 3]] == 1 ? 1 : 0;
+                        pc += 4;
+                    }
+                    case OR -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] == 1 || regs[fp + code[pc + 3]] == 1 ? 1 : 0;
+                        pc += 4;
+                    }
+                    case NOT -> {
+                        int a = regs[fp + code[pc + 2]];
+                        regs[fp + code[pc + 1]] = a == 1 ? 0 : a == 0 ? 1 : a;
+                        pc += 3;
+                    }
+                    case NEG -> {
+                        regs[fp + code[pc + 1]] = -regs[fp + code[pc + 2]];
+                        pc += 3;
+                    }
+                    case JMP -> pc = code[pc + 1];
+                    case JMPT -> pc = regs[fp + code[pc + 1]] == 1 ? code[pc + 2] : pc + 3;
+                    case JMPF -> pc = regs[fp + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+                    case LOADK -> {
+                        regs[fp + code[pc + 1]] = code[pc + 2];
+                        pc += 3;
+                    }
+                    case MOV -> {
+                        regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]];
+                        pc += 3;
+                    }
+                    case GGET -> {
+                        regs[fp + code[pc + 1]] = regs[code[pc + 2]];
+                        pc += 3;
+                    }
+                    case GPUT -> {
+                        regs[code[pc + 1]] = regs[fp + code[pc + 2]];
+                        pc += 3;
+                    }
+                    case PRINT -> {
+                        out.print(regs[fp + code[pc + 1]]);
+                        pc += 2;
+                    }
+                    case HALT -> {
+                        pc++;
+                        return;
+                    }
+                    case CALL -> {
+                        if (framesTop == frames.length) frames = Arrays.copyOf(frames, 2 * frames.length);
+                        frames[framesTop] = pc + 4;
+                        frames[framesTop + 1] = fp;
+                        frames[framesTop + 2] = code[pc + 1];
+                        framesTop += 3;
+                        fp += code[pc + 3];
+                        pc = code[pc + 2];
+                    }
+                    case RET -> {
+                        int a = regs[fp + code[pc + 1]];
+                        framesTop -= 3;
+                        pc = frames[framesTop];
+                        fp = frames[framesTop + 1];
+                        regs[fp + frames[framesTop + 2]] = a;
+                    }
+                    case ENTER -> {
+                        if (fp + code[pc + 1] > regs.length) {
+                            regs = Arrays.copyOf(regs, Math.max(2 * regs.length, fp + code[pc + 1]));
+                            this.regs = regs;
+                        }
+                        pc += 2;
+                    }
+                    case NEWARR -> {
+                        regs[fp + code[pc + 1]] = heap.allocate(regs[fp + code[pc + 2]], pc);
+                        pc += 3;
+                    }
+                    case ALOAD -> {
+                        regs[fp + code[pc + 1]] = heap.load(regs[fp + code[pc + 2]], regs[fp + code[pc + 3]], pc);
+                        pc += 4;
+                    }
+                    case ASTORE -> {
+                        heap.store(regs[fp + code[pc + 1]], regs[fp + code[pc + 2]], regs[fp + code[pc + 3]], pc);
+                        pc += 4;
+                    }
+                    case ALEN -> {
+                        regs[fp + code[pc + 1]] = heap.length(regs[fp + code[pc + 2]], pc);
+                        pc += 3;
+                    }
+                    case NATIVE -> {
+                        Intrinsics.Intrinsic intrinsic = Intrinsics.get(code[pc + 2]);
+                        if (intrinsic == null) {
+                            throw new MachineException("Unknown intrinsic " + code[pc + 2] + " at pc " + pc);
+                        }
+                        regs[fp + code[pc + 1]] = intrinsic.host.call(regs, fp + code[pc + 3] + intrinsic.arity - 1);
+                        pc += 4;
+                    }
+                    default -> throw new IllegalStateException("Unknown instruction " + code[pc] + " at " + pc);
+                }
+            }
+        } finally {
+            this.pc = pc;
+            this.fp = fp;
+            out.flush();
+        }
+    }
+
+    /**
+     * Converts a register program to readable text, one instruction per line.
+     * @param program the program
+     * @return the text of the program
+     */
+    public static String disassemble(int[] program) {
+        StringBuilder strB = new StringBuilder();
+        for (int pc = 0; pc < program.length; pc += 1 + operandCount(program[pc])) {
+            int op = program[pc];
+            strB.append(pc).append(": ").append(op > 0 && op < NAMES.length ? NAMES[op] : Integer.toString(op));
+            for (int i = 1; i <= operandCount(op) && pc + i < program.length; i++) {
+                strB.append(' ').append(program[pc + i]);
+            }
+            strB.append('\n');
+        }
+        return strB.toString();
+    }
+
+    /**
+     * @param args mode (run, dis or bench) filepath (the .vsrc file) [runs] (for bench)
+     */
+    public static void main(String[] args) {
+        int[] program;
+        try (Reader source = new FileReader(args[1])) {
+            program = RegisterCompiler.compileSource(source);
+        } catch (IOException | UnexpectedTokenException e) {
+            System.err.println(e);
+            return;
+        }
+        switch (args[0]) {
+            case "run" -> {
+                RegisterMachine m = new RegisterMachine();
+                m.load(program);
+                m.run();
+            }
+            case "dis" -> System.out.print(disassemble(program));
+            case "bench" -> benchmark(args[1], program, args.length > 2 ? Integer.parseInt(args[2]) : 20);
+        }
+    }
+
+    /**
+     * Times the same source on the stack machine (switch loop and pre-decoded) and on the register machine. Output
+     * from PRINT is discarded while timing.
+     * @param srcPath the filepath of the .vsrc file
+     * @param program the register code for it
+     * @param runs the number of timed runs of each engine (after the same number of warm-up runs)
+     */
+    private static void benchmark(String srcPath, int[] program, int runs) {
+        Program stackProgram;
+        try (Reader source = new FileReader(srcPath)) {
+            stackProgram = Compiler.compileSource(source);
+        } catch (IOException | UnexpectedTokenException e) {
+            System.err.println(e);
+            return;
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long[] best = new long[3];
+        for (int engine = 0; engine < 3; engine++) {
+            best[engine] = Long.MAX_VALUE;
+            for (int i = 0; i < 2 * runs; i++) {
+                Runnable run;
+                if (engine < 2) {
+                    Machine m = new Machine(false, engine == 1);
+                    m.load(stackProgram);
+                    run = m::run;
+                } else {
+                    RegisterMachine m = new RegisterMachine();
+                    m.load(program);
+                    run = m::run;
+                }
+                long start = System.nanoTime();
+                run.run();
+                long time = System.nanoTime() - start;
+                if (i >= runs) best[engine] = Math.min(best[engine], time);
+            }
+        }
+        System.setOut(out);
+        System.out.printf("stack switch:     %.3f ms%n", best[0] / 1e6);
+        System.out.printf("stack predecoded: %.3f ms (%.2fx)%n", best[1] / 1e6, (double) best[0] / best[1]);
+        System.out.printf("register:         %.3f ms (%.2fx)%n", best[2] / 1e6, (double) best[0] / best[2]);
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Scheduler class shares a fixed number of worker threads between many Machines. Each Machine runs for a slice of
+ * instructions (see Machine.run(long)) and then goes to the back of its tenant's queue, and the workers take turns
+ * between tenants, so a tenant with many Machines doesn't crowd out one with few and a Machine that never halts only
+ * ever holds a worker for one slice. Each tenant can have a quota of instructions. A tenant's Machines that are still
+ * running when it is used up fail with a MachineException.
+ */
+public class Scheduler implements AutoCloseable {
+    public static final long DEFAULT_SLICE = 100_000;
+
+    private final long slice;
+    private final Thread[] workers;
+    // the tenants with Machines waiting to run, each once, in the order they get their next turn
+    private final LinkedBlockingQueue<Tenant> ready = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+
+    /**
+     * A group of Machines that shares a quota.
+     */
+    public class Tenant {
+        public final String name;
+        private final long quota;
+        private final AtomicLong used = new AtomicLong();
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();  // guarded by this
+        private boolean queued = false;     // whether it is in ready, guarded by this
+
+        private Tenant(String name, long quota) {
+            this.name = name;
+            this.quota = quota;
+        }
+
+        /**
+         * @return the instructions its Machines have used
+         */
+        public long used() {
+            return used.get();
+        }
+
+        private synchronized void add(Task task) {
+            tasks.add(task);
+            if (!queued) requeue();
+        }
+
+        /**
+         * @return the next Machine to run, putting the tenant back in line if it has more
+         */
+        private synchronized Task next() {
+            Task task = tasks.poll();
+            queued = false;
+            if (!tasks.isEmpty()) requeue();
+            return task;
+        }
+
+        /**
+         * Puts the tenant in line, or fails its waiting Machines once the scheduler is closed, since close() may
+         * already have emptied ready. Called holding the tenant's lock.
+         */
+        private void requeue() {
+            synchronized (ready) {
+                queued = !closed;
+                if (queued) ready.add(this);
+            }
+            if (queued) return;
+            for (Task task = tasks.poll(); task != null; task = tasks.poll()) {
+                task.done.completeExceptionally(stopped());
+            }
+        }
+    }
+
+    /**
+     * A Machine and the future its caller waits on.
+     */
+    private static class Task {
+        final Machine machine;
+        final CompletableFuture<Machine> done = new CompletableFuture<>();
+
+        Task(Machine machine) {
+            this.machine = machine;
+        }
+    }
+
+    /**
+     * @param nWorkers the number of worker threads
+     */
+    public Scheduler(int nWorkers) {
+        this(nWorkers, DEFAULT_SLICE);
+    }
+
+    /**
+     * @param nWorkers the number of worker threads
+     * @param slice the instructions a Machine runs before the next one gets a turn
+     */
+    public Scheduler(int nWorkers, long slice) {
+        this.slice = Math.max(slice, 1);
+        workers = new Thread[Math.max(nWorkers, 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, "scheduler-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @param name the tenant's name, for error messages
+     * @param quota the instructions all of the tenant's Machines may use together, Long.MAX_VALUE for no limit. Slices
+     *              that were already running when it ran out may take it over by up to a slice per worker.
+     * @return a new tenant
+     */
+    public Tenant tenant(String name, long quota) {
+        return new Tenant(name, quota);
+    }
+
+    /**
+     * Runs a loaded Machine until it halts.
+     * @param tenant the tenant it runs for
+     * @param machine the Machine, with a program loaded
+     * @return a future completed with the Machine when it halts, or with the exception it failed with
+     */
+    public CompletableFuture<Machine> submit(Tenant tenant, Machine machine) {
+        Task task = new Task(machine);
+        tenant.add(task);
+        return task.done;
+    }
+
+    private void work() {
+        while (!closed) {
+            Tenant tenant;
+            try {
+                tenant = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Task task = tenant.next();
+            if (task == null) continue;
+            long budget = Math.min(slice, tenant.quota - tenant.used.get());
+            if (budget <= 0) {
+                task.done.completeExceptionally(new MachineException("Tenant " + tenant.name + " used its quota of "
+                        + tenant.quota + " instructions"));
+                continue;
+            }
+            try {
+                int status = task.machine.run(budget);
+                tenant.used.addAndGet(budget - task.machine.fuel());
+                if (status == Machine.HALTED) task.done.complete(task.machine);
+                else if (closed) task.done.completeExceptionally(stopped());
+                else tenant.add(task);
+            } catch (RuntimeException e) {
+                task.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static IllegalStateException stopped() {
+        return new IllegalStateException("the scheduler was closed");
+    }
+
+    /**
+     * Stops the workers once they finish their slices. Machines that haven't halted are left where they stopped and
+     * their futures fail.
+     */
+    @Override
+    public void close() {
+        // a tenant put in line after this is failed by requeue instead
+        synchronized (ready) {
+            closed = true;
+        }
+        for (Thread worker : workers) worker.interrupt();
+        for (Tenant tenant = ready.poll(); tenant != null; tenant = ready.poll()) {
+            for (Task task = tenant.next(); task != null; task = tenant.next()) {
+                task.done.completeExceptionally(stopped());
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The Snapshot class is the state of a Machine at one point of a run: its registers, the live part of its stack, its
+ * globals, its arrays and its program. A program that spends its first phase filling globals or arrays with tables can
+ * mark the end of it with a snapshot statement, be run up to there once, and have every later run restored from the
+ * snapshot instead of doing that work again (see Machine.setStopAtSnapshot, Machine.snapshot and Machine.restore).
+ * Snapshots are written as .vsnap files, a sequence of little-endian ints:
+ * <pre>
+ *     magic ("VSNP"), version, pc, sp, fp, global count, heap size
+ *     the stack from the bottom to sp
+ *     the globals
+ *     the heap (the words of the arrays, see ArrayHeap)
+ *     the program as a binary .vcomp file
+ * </pre>
+ * Like a Program, a Snapshot is not changed once it is made, so any number of Machines can be restored from one.
+ */
+public class Snapshot {
+    public static final int MAGIC = 'V' | 'S' << 8 | 'N' << 16 | 'P' << 24;    // the bytes "VSNP" in a file
+    public static final int VERSION = 1;
+    private static final int HEADER_INTS = 7;
+
+    public final Program program;
+    public final int pc, sp, fp;
+    public final int[] stack;       // the stack up to and including sp
+    public final int[] globals;     // the globals up to the last one that isn't 0
+    public final int[] heap;        // the words of the arrays
+
+    /**
+     * The arrays must not be modified after construction.
+     */
+    public Snapshot(Program program, int pc, int sp, int fp, int[] stack, int[] globals, int[] heap) {
+        this.program = program;
+        this.pc = pc;
+        this.sp = sp;
+        this.fp = fp;
+        this.stack = stack;
+        this.globals = globals;
+        this.heap = heap;
+    }
+
+    /**
+     * Reads a .vsnap file. The file is memory-mapped and the stack, globals and code are each copied out in one bulk
+     * read.
+     * @param path the filepath
+     * @return the snapshot
+     * @throws IOException if the file can't be read or isn't a snapshot this version can read
+     */
+    public static Snapshot read(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < 4 * HEADER_INTS || buffer.getInt() != MAGIC) {
+                throw new IOException(path + ": not a .vsnap file");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) throw new IOException(path + ": unsupported .vsnap version " + version);
+            int pc = buffer.getInt(), sp = buffer.getInt(), fp = buffer.getInt(), globalCount = buffer.getInt();
+            int heapSize = buffer.getInt();
+            if (sp < -1 || globalCount < 0 || heapSize < 0
+                    || 4L * ((long) sp + 1 + globalCount + heapSize) > buffer.remaining()) {
+                throw new IOException(path + ": truncated .vsnap file");
+            }
+            int[] stack = new int[sp + 1], globals = new int[globalCount], heap = new int[heapSize];
+            buffer.asIntBuffer().get(stack).get(globals).get(heap);
+            buffer.position(buffer.position() + 4 * (stack.length + globals.length + heap.length));
+            Program program = Program.readBinary(buffer.slice().order(ByteOrder.LITTLE_ENDIAN), path);
+            if (pc < 0 || pc >= program.code.length || fp < 0 || fp > sp + 1) {
+                throw new IOException(path + ": bad .vsnap registers pc " + pc + " sp " + sp + " fp " + fp);
+            }
+            return new Snapshot(program, pc, sp, fp, stack, globals, heap);
+        }
+    }
+
+    /**
+     * Writes the snapshot as a .vsnap file.
+     * @param path the filepath
+     * @throws IOException if the file can't be written
+     */
+    public void write(String path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (HEADER_INTS + stack.length + globals.length + heap.length)
+                + program.binarySize()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(pc).putInt(sp).putInt(fp).putInt(globals.length)
+                .putInt(heap.length);
+        buffer.asIntBuffer().put(stack).put(globals).put(heap);
+        buffer.position(buffer.position() + 4 * (stack.length + globals.length + heap.length));
+        program.put(buffer);
+        Program.writeFile(buffer.flip(), path);
+    }
+}
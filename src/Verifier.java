@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Verifier class checks a program once, before it runs, by following the control flow of the entry point and of
+ * every function it calls and tracking the depth of the operand stack. A program is verified when:
+ * <ul>
+ *     <li>every instruction is known and complete, and the code never runs off its end</li>
+ *     <li>every jump and call targets the start of an instruction, and no code is shared by two functions</li>
+ *     <li>no instruction pops more than its function has pushed, and every path to an instruction reaches it with the
+ *     same stack depth</li>
+ *     <li>LOADI, STORE and STOREI name an argument or local of their function, GLOADI and GSTORE a global of the program and
+ *     NATIVE a registered host function (see Intrinsics)</li>
+ *     <li>every call to a function passes the same number of arguments and locals, and the top level doesn't RET or
+ *     TCALL, since it has no frame</li>
+ * </ul>
+ * Jumps to computed addresses and LOAD/GLOAD with computed indexes can't be checked, so programs that use them (only
+ * hand-written ones; the Parser and PeepholeOptimizer never emit them) are not verified and run as before. A Machine
+ * refuses to load a program with any other fault (see Result.faulty).
+ * <p>
+ * Along the way the largest operand stack of every function is found. If no function can reach itself through calls,
+ * this gives the most stack the whole program can ever use, so a Machine can size its stack once and let calls skip
+ * the check for room (see Machine.run).
+ */
+public class Verifier {
+
+    /**
+     * What the Verifier found out about a program. Like the Program, it is not changed once it is made.
+     */
+    public static class Result {
+        public final String error;      // why the program isn't verified, null if it is
+        public final boolean faulty;    // whether the error is a fault rather than code that can't be checked
+        public final int stackNeed;     // the slots the program can use from an empty stack, -1 if unknown
+        private final Map<Integer, Integer> maxDepths;  // the largest operand stack of each function by address
+
+        Result(String error, boolean faulty, int stackNeed, Map<Integer, Integer> maxDepths) {
+            this.error = error;
+            this.faulty = faulty;
+            this.stackNeed = stackNeed;
+            this.maxDepths = maxDepths;
+        }
+
+        public boolean verified() {
+            return error == null;
+        }
+
+        /**
+         * @param addr the address of a function (or the entry point)
+         * @return the most values its expressions have on the stack at once, not counting the functions it calls, or
+         * -1 if it wasn't verified
+         */
+        public int maxDepth(int addr) {
+            return maxDepths.getOrDefault(addr, -1);
+        }
+
+        /**
+         * @return the addresses of the entry point and the functions it can call, in the order they were found
+         */
+        public int[] functions() {
+            return maxDepths.keySet().stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * A function being verified: how it is called and what it pushes.
+     */
+    private static class Function {
+        final int addr, nArgs, nLocals;
+        final boolean top;  // the entry point, which runs without a frame
+        int maxDepth;
+        final ArrayList<int[]> calls = new ArrayList<>();   // {the stack depth under the arguments, callee address}
+        final ArrayList<Integer> tailCalls = new ArrayList<>();     // the addresses of the callees of its TCALLs
+
+        Function(int addr, int nArgs, int nLocals, boolean top) {
+            this.addr = addr;
+            this.nArgs = nArgs;
+            this.nLocals = nLocals;
+            this.top = top;
+        }
+    }
+
+    private final int[] code;
+    private final int globalCount;
+    private final boolean[] boundary;   // whether an instruction starts at each address
+    private final int[] depth;          // the stack depth before each instruction, -1 if it isn't reached
+    private final int[] owner;          // the address of the function each reached instruction belongs to
+    private final Map<Integer, Function> functions = new LinkedHashMap<>();
+    private final ArrayList<Function> toVerify = new ArrayList<>();
+    private boolean unchecked;          // whether the error was code that can't be checked
+
+    private Verifier(Program program) {
+        code = program.code;
+        globalCount = program.globalCount;
+        boundary = new boolean[code.length];
+        depth = new int[code.length];
+        owner = new int[code.length];
+        Arrays.fill(depth, -1);
+    }
+
+    /**
+     * Verifies a program. Machines get the result from Program.verification(), which verifies each program only once.
+     * @param program the program
+     * @return the result
+     */
+    public static Result verify(Program program) {
+        Verifier v = new Verifier(program);
+        String error = v.verifyAll(program.entryPoint);
+        Map<Integer, Integer> maxDepths = new LinkedHashMap<>();
+        if (error != null) return new Result(error, !v.unchecked, -1, maxDepths);
+        for (Function f : v.functions.values()) maxDepths.put(f.addr, f.maxDepth);
+        return new Result(null, false, v.stackNeed(program.entryPoint), maxDepths);
+    }
+
+    /**
+     * @return null or the reason the program isn't verified
+     */
+    private String verifyAll(int entryPoint) {
+        for (int i = 0; i < code.length; i += 1 + Machine.operandCount(code[i])) {
+            if (!Compiler.INT_TO_INSTRUCTION.containsKey(code[i])) return "unknown instruction " + code[i] + " at " + i;
+            if (i + Machine.operandCount(code[i]) >= code.length) return "the instruction at " + i + " is truncated";
+            boundary[i] = true;
+        }
+        if (entryPoint < 0 || entryPoint >= code.length || !boundary[entryPoint]) return "bad entry point";
+        Function top = new Function(entryPoint, 0, 0, true);
+        functions.put(entryPoint, top);
+        toVerify.add(top);
+        while (!toVerify.isEmpty()) {
+            String error = verify(toVerify.remove(toVerify.size() - 1));
+            if (error != null) return error;
+        }
+        return null;
+    }
+
+    /**
+     * Follows the control flow of one function, recording the stack depth before each of its instructions.
+     * @return null or the reason the program isn't verified
+     */
+    private String verify(Function f) {
+        ArrayList<Integer> worklist = new ArrayList<>();
+        String error = reach(f, f.addr, f.addr, 0, worklist);
+        while (error == null && !worklist.isEmpty()) {
+            int pc = worklist.remove(worklist.size() - 1);
+            int d = depth[pc];
+            int op = code[pc];
+            int next = pc + 1 + Machine.operandCount(op);
+            int target = -1;
+            int pops = switch (op) {
+                case Machine.ADD, Machine.SUB, Machine.MUL, Machine.DIV, Machine.MOD, Machine.LT, Machine.GT,
+                        Machine.LEQ, Machine.GEQ, Machine.EQ, Machine.AND, Machine.OR, Machine.ALOAD -> 2;
+                case Machine.ASTORE -> 3;
+                case Machine.CALL, Machine.TCALL -> code[pc + 2];
+                case Machine.NATIVE -> Intrinsics.get(code[pc + 1]) != null ? Intrinsics.get(code[pc + 1]).arity : 0;
+                case Machine.CONST, Machine.LOADI, Machine.GLOADI, Machine.JMPI, Machine.HALT, Machine.SNAP -> 0;
+                default -> 1;
+            };
+            if (d < pops) return "stack underflow at " + pc + ": " + name(op) + " needs " + pops + ", there are " + d;
+            switch (op) {
+                case Machine.ADD, Machine.SUB, Machine.MUL, Machine.DIV, Machine.MOD, Machine.LT, Machine.GT,
+                        Machine.LEQ, Machine.GEQ, Machine.EQ, Machine.AND, Machine.OR, Machine.ALOAD -> d--;
+                case Machine.NOT, Machine.NEG, Machine.NEWARR, Machine.ALEN, Machine.SNAP -> {
+                }
+                case Machine.CONST, Machine.DUP -> d++;
+                case Machine.LOADI, Machine.STORE, Machine.STOREI -> {
+                    int idx = code[pc + 1];
+                    if (op == Machine.STORE) {
+                        // STORE n writes fp - n + 1: local -n, the saved frame for n from 1 to 3, then the arguments
+                        if (idx >= 1 && idx <= 3) return "STORE " + idx + " overwrites the saved frame at " + pc;
+                        idx = idx <= 0 ? -idx : 3 - idx;
+                    }
+                    if (idx < -f.nArgs || idx >= f.nLocals) {
+                        return "local " + idx + " out of range at " + pc + " (" + f.nArgs + " arguments, " + f.nLocals
+                                + " locals)";
+                    }
+                    d += op == Machine.LOADI ? 1 : -1;
+                }
+                case Machine.GLOADI, Machine.GSTORE -> {
+                    if (code[pc + 1] < 0 || code[pc + 1] >= globalCount) {
+                        return "global " + code[pc + 1] + " out of range at " + pc + " (" + globalCount + " globals)";
+                    }
+                    d += op == Machine.GLOADI ? 1 : -1;
+                }
+                case Machine.NATIVE -> {
+                    if (Intrinsics.get(code[pc + 1]) == null) return "unknown intrinsic " + code[pc + 1] + " at " + pc;
+                    d = d - pops + 1;
+                }
+                case Machine.PRINT, Machine.POP -> d--;
+                case Machine.ASTORE -> d -= 3;
+                case Machine.JMPI -> {
+                    target = code[pc + 1];
+                    next = -1;
+                }
+                case Machine.JMPTI, Machine.JMPFI -> {
+                    d--;
+                    target = code[pc + 1];
+                }
+                case Machine.CALL, Machine.TCALL -> {
+                    if (f.top && op == Machine.TCALL) return "TCALL at " + pc + " outside of a function";
+                    error = call(f, pc, d - pops);
+                    if (op == Machine.CALL) d = d - pops + 1;
+                    else next = -1;
+                }
+                case Machine.RET -> {
+                    if (f.top) return "RET at " + pc + " outside of a function";
+                    next = -1;
+                }
+                case Machine.HALT -> next = -1;
+                case Machine.JMP, Machine.JMPT, Machine.JMPF -> {
+                    unchecked = true;
+                    return "computed jump at " + pc;
+                }
+                default -> {
+                    unchecked = true;
+                    return "computed " + (op == Machine.LOAD ? "local" : "global") + " index at " + pc;
+                }
+            }
+            f.maxDepth = Math.max(f.maxDepth, d);
+            if (error == null && next >= 0) error = reach(f, pc, next, d, worklist);
+            if (error == null && target >= 0) error = reach(f, pc, target, d, worklist);
+        }
+        return error;
+    }
+
+    /**
+     * Records that an instruction of f is reached with a stack depth, queueing it the first time.
+     * @param from the instruction it is reached from
+     * @return null or the reason the program isn't verified
+     */
+    private String reach(Function f, int from, int pc, int d, ArrayList<Integer> worklist) {
+        if (pc == code.length) return "the code of the function at " + f.addr + " runs off the end at " + from;
+        if (pc < 0 || pc > code.length) return "jump out of the code at " + from + " (to " + pc + ")";
+        if (!boundary[pc]) return "jump into an instruction at " + from + " (to " + pc + ")";
+        if (depth[pc] == -1) {
+            depth[pc] = d;
+            owner[pc] = f.addr;
+            f.maxDepth = Math.max(f.maxDepth, d);
+            worklist.add(pc);
+        } else if (owner[pc] != f.addr) {
+            return "the code at " + pc + " is shared by the functions at " + owner[pc] + " and " + f.addr;
+        } else if (depth[pc] != d) {
+            return "stack depth " + d + " at " + pc + ", " + depth[pc] + " on another path";
+        }
+        return null;
+    }
+
+    /**
+     * Checks the callee of the CALL or TCALL at pc and queues it the first time it is called.
+     * @param base the stack depth under the arguments
+     * @return null or the reason the program isn't verified
+     */
+    private String call(Function f, int pc, int base) {
+        int addr = code[pc + 1], nArgs = code[pc + 2], nLocals = code[pc + 3];
+        if (addr < 0 || addr >= code.length || !boundary[addr]) return "call into an instruction at " + pc;
+        if (nArgs < 0 || nLocals < 0) return "negative argument or local count at " + pc;
+        Function callee = functions.get(addr);
+        if (callee == null) {
+            if (depth[addr] != -1) return "call at " + pc + " into the code of the function at " + owner[addr];
+            callee = new Function(addr, nArgs, nLocals, false);
+            functions.put(addr, callee);
+            toVerify.add(callee);
+        } else if (callee.top || callee.nArgs != nArgs || callee.nLocals != nLocals) {
+            return "the call at " + pc + " doesn't match the other calls to " + addr;
+        }
+        if (code[pc] == Machine.CALL) f.calls.add(new int[]{base, addr});
+        else f.tailCalls.add(addr);
+        return null;
+    }
+
+    /**
+     * Works out the most stack a run from the entry point can use: a function needs room for its arguments, the three
+     * saved words, its locals and its operands, and at each call the callee's room on top of what is under the
+     * arguments. A TCALL's callee takes the caller's place.
+     * @return the slots needed, or -1 if a function can reach itself through calls
+     */
+    private int stackNeed(int entryPoint) {
+        Map<Integer, Long> needs = new LinkedHashMap<>();
+        long need = need(functions.get(entryPoint), needs);
+        return need < 0 || need > Integer.MAX_VALUE ? -1 : (int) need;
+    }
+
+    /**
+     * @param needs the room of every function worked out so far, -1 for the ones still being worked out
+     * @return the room f needs from the first of its arguments, -1 if it can reach itself
+     */
+    private long need(Function f, Map<Integer, Long> needs) {
+        Long known = needs.get(f.addr);
+        if (known != null) return known;
+        needs.put(f.addr, -1L);
+        long frame = f.top ? 0 : f.nArgs + 3 + f.nLocals;
+        long need = frame + f.maxDepth;
+        for (int[] call : f.calls) {
+            long callee = need(functions.get(call[1]), needs);
+            if (callee < 0) return -1;
+            need = Math.max(need, frame + call[0] + callee);
+        }
+        for (int addr : f.tailCalls) {
+            long callee = need(functions.get(addr), needs);
+            if (callee < 0) return -1;
+            need = Math.max(need, callee);
+        }
+        needs.put(f.addr, need);
+        return need;
+    }
+
+    private static String name(int op) {
+        return Compiler.INT_TO_INSTRUCTION.getOrDefault(op, Integer.toString(op));
+    }
+
+    /**
+     * @param program the program
+     * @param result what verifying it found
+     * @return a line saying whether the program was verified and how much stack it needs, then a line for each
+     * function with its largest operand stack
+     */
+    public static String report(Program program, Result result) {
+        if (!result.verified()) return (result.faulty ? "rejected: " : "not verified: ") + result.error + "\n";
+        StringBuilder s = new StringBuilder("verified, ");
+        s.append(result.stackNeed >= 0 ? "the stack needs " + result.stackNeed + " slots"
+                : "the stack can't be sized ahead (recursive calls)").append('\n');
+        for (int addr : result.functions()) {
+            String name = addr == program.entryPoint ? "<main>" : program.nameAt(addr);
+            s.append(String.format("%-20s %6d max depth%n", (name != null ? name : "@" + addr) + ":",
+                    result.maxDepth(addr)));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Verifies a program and prints the result.
+     * @param args filepath (a .vbyt or .vcomp file)
+     */
+    public static void main(String[] args) {
+        Program program;
+        try {
+            program = args[0].endsWith(".vbyt") ? Compiler.assemble(Files.readString(Path.of(args[0])))
+                    : Program.read(args[0]);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println(e);
+            return;
+        }
+        System.out.print(report(program, program.verification()));
+    }
+}